@@ -1,21 +1,135 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 class BTree<K extends Comparable<K>, V> {
+    private static final int MAX_PENDING_BUFFERS = 64; // buffers in flight before inserts wait
+    private static final long WAL_SYNC_INTERVAL_MILLIS = 10;
+    private static final int BULK_BATCH_ENTRIES = 16 * 1024; // entries per flusher batch in bulkLoad
     private BTreeNode<K, V> root;
     private int bufferSize;
     private HashPartition<K, V> partition;
+    private BufferFlusher<K, V> flusher;
+    private WriteAheadLog<K, V> wal; // null unless logging was asked for, also while replaying
 
-    public BTree(int bufferSize, int numPartitions) {
+    // latch on the root pointer, acts as the parent of root while crabbing
+    private final ReadWriteLock rootLock = new ReentrantReadWriteLock();
+
+    // every node with a non-empty buffer is in here, added and removed under the node's latch
+    private final Set<BTreeNode<K, V>> dirtyNodes = ConcurrentHashMap.newKeySet();
+
+    // nodes changed since the last checkpoint, and pages of nodes that left the tree since then
+    private final Set<BTreeNode<K, V>> changedNodes = ConcurrentHashMap.newKeySet();
+    private final Set<Long> freedPages = ConcurrentHashMap.newKeySet();
+    private final Set<BTreeNode<K, V>> removedNodes = ConcurrentHashMap.newKeySet(); // left the tree since then
+    // shared by every operation that may split, merge or replace the root, exclusive while a
+    // checkpoint copies its pages, so the copied pages always agree on the tree's shape
+    private final ReadWriteLock structureLock = new ReentrantReadWriteLock();
+    private final ReentrantLock checkpointLock = new ReentrantLock(); // one checkpoint at a time
+    private String storagePath;
+    private CheckpointStore<K, V> checkpoints; // opened by the first checkpoint or restore
+
+    // lazy rebalancing: deletes only touch the leaf and may leave it underfull or empty. a key
+    // is queued when its delete takes a leaf below compactBelow keys, the compactor later
+    // descends with it and rebalances whatever leaf it finds there
+    private volatile boolean relaxedDeletes;
+    private int compactBelow;
+    private final Queue<K> compactionHints = new ConcurrentLinkedQueue<>();
+    private ScheduledExecutorService compactor;
+
+    public BTree(int bufferSize, int numPartitions, String storagePath) {
         this.root = null;
         this.bufferSize = bufferSize;
-        this.partition = new HashPartition<>(numPartitions);
+        this.storagePath = storagePath;
+        this.partition = new HashPartition<>(numPartitions, storagePath);
+        this.flusher = new BufferFlusher<>(partition, Runtime.getRuntime().availableProcessors(),
+                MAX_PENDING_BUFFERS);
+    }
+
+    // logs every insert and delete to storagePath/wal.log. on startup the last checkpoint is
+    // loaded and the log written since then is replayed on top of it, that rebuilds the tree
+    // as it was when the previous process stopped
+    public BTree(int bufferSize, int numPartitions, String storagePath, WriteAheadLog.SyncPolicy syncPolicy) {
+        this(bufferSize, numPartitions, storagePath);
+        try {
+            restore();
+            WriteAheadLog<K, V> log = new WriteAheadLog<>(Paths.get(storagePath, "wal.log"), Codec.serializable(),
+                    Codec.serializable(), syncPolicy, WAL_SYNC_INTERVAL_MILLIS);
+            log.replay(new WriteAheadLog.Visitor<>() {
+                @Override
+                public void insert(K key, V value) {
+                    BTree.this.insert(key, value);
+                }
+
+                @Override
+                public void delete(K key) {
+                    BTree.this.delete(key);
+                }
+            });
+            this.wal = log;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public void insert(K key, V value) {
-        root.lockWrite();
+        long start = TreeMetrics.start();
+        boolean flush;
+        BTreeNode<K, V> leaf = findLeafNodeOptimistic(key);
+        if (leaf != null && isSafe(leaf, true)) {
+            try {
+                flush = insertIntoNode(leaf, key, value);
+            } finally {
+                leaf.unlockWrite();
+            }
+        } else {
+            if (leaf != null) {
+                leaf.unlockWrite();
+            }
+            flush = insertPessimistic(key, value);
+        }
+
+        if (flush) {
+            flusher.awaitCapacity();
+        }
+        if (wal != null) {
+            wal.commit();
+        }
+        TreeMetrics.record(TreeMetrics.INSERT, start);
+    }
+
+    private boolean insertPessimistic(K key, V value) {
+        Deque<BTreeNode<K, V>> latched = new ArrayDeque<>();
+        structureLock.readLock().lock();
+        rootLock.writeLock().lock();
+        boolean rootLatched = true;
         try {
             if (root == null) {
                 root = new BTreeNode<>(true);
@@ -23,275 +137,1199 @@ class BTree<K extends Comparable<K>, V> {
                 root.getValues().add(value);
                 root.setBuffer(new HashMap<>());
                 root.getBuffer().put(key, value);
-            } else {
-                BTreeNode<K, V> node = findLeafNode(root, key);
-                insertIntoNode(node, key, value);
-                if (node.getKeys().size() > bufferSize) {
-                    splitNode(node);
+                dirtyNodes.add(root);
+                markChanged(root);
+                if (wal != null) {
+                    wal.logInsert(key, value);
                 }
+                return false;
             }
+
+            rootLatched = findLeafNode(root, key, true, latched);
+            BTreeNode<K, V> node = latched.getLast();
+            boolean flush = insertIntoNode(node, key, value);
+            if (node.getKeys().size() > bufferSize) {
+                splitNode(node);
+            }
+            return flush;
         } finally {
-            root.unlockWrite();
+            unlockAll(latched);
+            if (rootLatched) {
+                rootLock.writeLock().unlock();
+            }
+            structureLock.readLock().unlock();
         }
     }
 
-    private BTreeNode<K, V> findLeafNode(BTreeNode<K, V> node, K key) {
+    // upper end of the key range a descent ended in, exclusive. null for the rightmost leaf.
+    // the range can't change while the leaf is latched
+    private static final class Fence<K extends Comparable<K>> {
+        private K high;
+
+        private void narrow(List<K> keys, int childIndex) {
+            if (childIndex < keys.size()) {
+                high = keys.get(childIndex);
+            }
+        }
+
+        private boolean covers(K key) {
+            return high == null || key.compareTo(high) < 0;
+        }
+    }
+
+    private BTreeNode<K, V> findLeafNodeOptimistic(K key) {
+        return findLeafNodeOptimistic(key, null);
+    }
+
+    // first pass: read latches on inner nodes, write latch on the leaf only.
+    // returns the write-latched leaf, or null if the tree is empty
+    private BTreeNode<K, V> findLeafNodeOptimistic(K key, Fence<K> fence) {
+        rootLock.readLock().lock();
+        BTreeNode<K, V> node = root;
+        if (node == null) {
+            rootLock.readLock().unlock();
+            return null;
+        }
         if (node.isLeafNode()) {
-            return node;
+            node.lockWrite();
         } else {
-            int index = 0;
-            while (index < node.getKeys().size() && key.compareTo(node.getKeys().get(index)) >= 0) {
-                index++;
+            node.lockRead();
+        }
+        rootLock.readLock().unlock();
+
+        while (!node.isLeafNode()) {
+            int index = childIndex(node, key);
+            if (fence != null) {
+                fence.narrow(node.getKeys(), index);
+            }
+            BTreeNode<K, V> child = node.getChildren().get(index);
+            if (child.isLeafNode()) {
+                child.lockWrite();
+            } else {
+                child.lockRead();
             }
-            return findLeafNode(node.getChildren().get(index), key);
+            node.unlockRead();
+            node = child;
         }
+        return node;
     }
 
-    private void insertIntoNode(BTreeNode<K, V> node, K key, V value) {
-        int index = 0;
-        while (index < node.getKeys().size() && key.compareTo(node.getKeys().get(index)) >= 0) {
-            index++;
+    private boolean findLeafNode(BTreeNode<K, V> node, K key, boolean forInsert, Deque<BTreeNode<K, V>> latched) {
+        return findLeafNode(node, key, forInsert, 1, null, latched);
+    }
+
+    // second pass: write latches from the root down, ancestors are released as soon as
+    // a child is safe for count keys. the caller must hold rootLock's write lock, the latched
+    // path ends with the leaf. returns whether rootLock is still held
+    private boolean findLeafNode(BTreeNode<K, V> node, K key, boolean forInsert, int count, Fence<K> fence,
+            Deque<BTreeNode<K, V>> latched) {
+        boolean rootLatched = true;
+        node.lockWrite();
+        latched.addLast(node);
+        if (isSafe(node, forInsert, count)) {
+            rootLock.writeLock().unlock();
+            rootLatched = false;
         }
-        node.getKeys().add(index, key);
-        node.getValues().add(index, value);
-        node.getBuffer().put(key, value);
 
-        if (node.getBuffer().size() > bufferSize) {
-            writeBufferToDisk();
+        while (!node.isLeafNode()) {
+            int index = childIndex(node, key);
+            if (fence != null) {
+                fence.narrow(node.getKeys(), index);
+            }
+            BTreeNode<K, V> child = node.getChildren().get(index);
+            child.lockWrite();
+            if (isSafe(child, forInsert, count)) {
+                unlockAll(latched);
+                if (rootLatched) {
+                    rootLock.writeLock().unlock();
+                    rootLatched = false;
+                }
+            }
+            latched.addLast(child);
+            node = child;
         }
+        return rootLatched;
     }
 
+    private boolean isSafe(BTreeNode<K, V> node, boolean forInsert) {
+        return isSafe(node, forInsert, 1);
+    }
 
-    private void splitNode(BTreeNode<K, V> node) {
-        int midIndex = node.getKeys().size() / 2;
-        K midKey = node.getKeys().get(midIndex);
-        V midValue = node.getValues().get(midIndex);
+    // a safe node can't split on count inserts or underflow on count deletes, so nothing
+    // above it changes
+    private boolean isSafe(BTreeNode<K, V> node, boolean forInsert, int count) {
+        if (forInsert) {
+            return node.getKeys().size() + count <= bufferSize;
+        }
+        return node.getKeys().size() - count + 1 > Math.max(1, bufferSize / 2);
+    }
 
-        BTreeNode<K, V> leftNode = new BTreeNode<>(node.isLeafNode());
-        for (int i = 0; i < midIndex; i++) {
-            leftNode.getKeys().add(node.getKeys().get(i));
-            leftNode.getValues().add(node.getValues().get(i));
+    private int childIndex(BTreeNode<K, V> node, K key) {
+        return KeySearch.upperBound(node.getKeys(), key);
+    }
+
+    private void unlockAll(Deque<BTreeNode<K, V>> latched) {
+        while (!latched.isEmpty()) {
+            latched.removeFirst().unlockWrite();
         }
-        leftNode.setBuffer(new HashMap<>(leftNode.getBuffer()));
+    }
 
-        BTreeNode<K, V> rightNode = new BTreeNode<>(node.isLeafNode());
-        for (int i = midIndex + 1; i < node.getKeys().size(); i++) {
-            rightNode.getKeys().add(node.getKeys().get(i));
-            rightNode.getValues().add(node.getValues().get(i));
+    // node is a leaf, a key that is already there gets the new value. a full buffer is swapped
+    // for an empty one and handed to the flusher while node is still latched. returns whether
+    // that happened, the caller waits for flush capacity once its latches are released
+    private boolean insertIntoNode(BTreeNode<K, V> node, K key, V value) {
+        // before the record is logged, a checkpoint that starts after the record then copies
+        // the node once this latch is released, before it cuts the log at its lsn
+        markChanged(node);
+        if (wal != null) {
+            wal.logInsert(key, value);
+        }
+        int index = KeySearch.lowerBound(node.getKeys(), key);
+        if (index < node.getKeys().size() && key.compareTo(node.getKeys().get(index)) == 0) {
+            node.getValues().set(index, value);
+        } else {
+            node.getKeys().add(index, key);
+            node.getValues().add(index, value);
         }
-        rightNode.setBuffer(new HashMap<>(rightNode.getBuffer()));
+        node.getBuffer().put(key, value);
+
+        if (node.getBuffer().size() <= bufferSize) {
+            dirtyNodes.add(node);
+            return false;
+        }
+        flusher.submit(node.getBuffer());
+        node.setBuffer(new HashMap<>());
+        dirtyNodes.remove(node);
+        return true;
+    }
+
+    // caller holds the node's write latch
+    private void markDirty(BTreeNode<K, V> node) {
+        if (node != null && !node.getBuffer().isEmpty()) {
+            dirtyNodes.add(node);
+        }
+    }
+
+    // caller holds the node's write latch
+    private void markChanged(BTreeNode<K, V> node) {
+        if (node != null) {
+            changedNodes.add(node);
+        }
+    }
+
+    // node left the tree, its page goes with the next checkpoint
+    private void freePage(BTreeNode<K, V> node) {
+        removedNodes.add(node);
+        if (node.getPageId() != BTreeNode.NO_PAGE) {
+            freedPages.add(node.getPageId());
+        }
+    }
+
+
+    private void splitNode(BTreeNode<K, V> node) {
+        splitNode(node, node.getKeys().size() / 2);
+    }
+
+    // node keeps the keys before midIndex, so the leaf chain and anyone holding node stay valid.
+    // leaves copy the middle key up and keep it, inner nodes move it up. only the separator
+    // goes up, values and buffers stay in the leaves
+    private void splitNode(BTreeNode<K, V> node, int midIndex) {
+        TreeMetrics.count(TreeMetrics.SPLITS);
+        int size = node.getKeys().size();
+        K midKey = node.getKeys().get(midIndex);
 
-        if (!node.isLeafNode()) {
-            leftNode.setChildren(new ArrayList<>(node.getChildren().subList(0, midIndex + 1)));
-            rightNode.setChildren(new ArrayList<>(node.getChildren().subList(midIndex + 1, node.getChildren().size())));
+        BTreeNode<K, V> rightNode = new BTreeNode<>(node.isLeafNode());
+        if (node.isLeafNode()) {
+            rightNode.getKeys().addAll(node.getKeys().subList(midIndex, size));
+            rightNode.getValues().addAll(node.getValues().subList(midIndex, size));
+            node.getKeys().subList(midIndex, size).clear();
+            node.getValues().subList(midIndex, size).clear();
+            rightNode.setRightLink(node.getRightLink());
+            node.setRightLink(rightNode);
+            for (K key : rightNode.getKeys()) {
+                V value = node.getBuffer().remove(key);
+                if (value != null) {
+                    rightNode.getBuffer().put(key, value);
+                }
+            }
+            markDirty(rightNode);
+        } else {
+            int childCount = node.getChildren().size();
+            rightNode.getKeys().addAll(node.getKeys().subList(midIndex + 1, size));
+            rightNode.getChildren().addAll(node.getChildren().subList(midIndex + 1, childCount));
+            node.getKeys().subList(midIndex, size).clear();
+            node.getChildren().subList(midIndex + 1, childCount).clear();
+            for (BTreeNode<K, V> child : rightNode.getChildren()) {
+                child.setParent(rightNode);
+            }
         }
+        markChanged(node);
+        markChanged(rightNode);
 
         if (node.getParent() == null) {
             BTreeNode<K, V> newRoot = new BTreeNode<>(false);
             newRoot.getKeys().add(midKey);
-            newRoot.getValues().add(midValue);
-            newRoot.getChildren().add(leftNode);
+            newRoot.getChildren().add(node);
             newRoot.getChildren().add(rightNode);
             root = newRoot;
-            leftNode.setParent(newRoot);
+            node.setParent(newRoot);
             rightNode.setParent(newRoot);
+            markChanged(newRoot);
         } else {
             BTreeNode<K, V> parent = node.getParent();
             int index = parent.getChildren().indexOf(node);
             parent.getKeys().add(index, midKey);
-            parent.getValues().add(index, midValue);
-            parent.getChildren().remove(node);
-            parent.getChildren().add(index, leftNode);
             parent.getChildren().add(index + 1, rightNode);
-            leftNode.setParent(parent);
             rightNode.setParent(parent);
-            parent.getBuffer().put(midKey, midValue);
+            markChanged(parent);
             if (parent.getKeys().size() > bufferSize) {
                 splitNode(parent);
             }
         }
     }
 
+    // builds the tree from entries sorted by key, without descending or splitting: leaves are
+    // packed to fillFactor of bufferSize from left to right, then every inner level is built
+    // over the one below it. a later entry with the same key replaces the earlier one.
+    // only for an empty tree, writers wait until the new root is published
+    public void bulkLoad(Iterator<Map.Entry<K, V>> sorted, double fillFactor) {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("fillFactor must be in (0, 1]");
+        }
+        int perNode = Math.max(1, (int) (bufferSize * fillFactor));
+
+        structureLock.readLock().lock();
+        rootLock.writeLock().lock();
+        try {
+            if (root != null) {
+                throw new IllegalStateException("bulkLoad needs an empty tree");
+            }
+
+            List<BTreeNode<K, V>> leaves = new ArrayList<>();
+            BTreeNode<K, V> leaf = null;
+            K lastKey = null;
+            while (sorted.hasNext()) {
+                Map.Entry<K, V> entry = sorted.next();
+                K key = entry.getKey();
+                int order = lastKey == null ? 1 : key.compareTo(lastKey);
+                if (order < 0) {
+                    throw new IllegalArgumentException("bulkLoad input is not sorted at " + key);
+                }
+                if (order == 0) {
+                    leaf.getValues().set(leaf.getValues().size() - 1, entry.getValue());
+                    continue;
+                }
+                if (leaf == null || leaf.getKeys().size() == perNode) {
+                    BTreeNode<K, V> next = new BTreeNode<>(true);
+                    if (leaf != null) {
+                        leaf.setRightLink(next);
+                    }
+                    leaves.add(next);
+                    leaf = next;
+                }
+                leaf.getKeys().add(key);
+                leaf.getValues().add(entry.getValue());
+                markChanged(leaf);
+                lastKey = key;
+            }
+            if (leaves.isEmpty()) {
+                return;
+            }
+            balanceLastLeaf(leaves);
+
+            // entries go to the partition in large batches, the leaves start out with empty buffers
+            Map<K, V> batch = new HashMap<>();
+            for (BTreeNode<K, V> node : leaves) {
+                for (int i = 0; i < node.getKeys().size(); i++) {
+                    batch.put(node.getKeys().get(i), node.getValues().get(i));
+                }
+                if (batch.size() >= BULK_BATCH_ENTRIES) {
+                    flusher.submit(batch);
+                    flusher.awaitCapacity();
+                    batch = new HashMap<>();
+                }
+            }
+            flusher.submit(batch);
+
+            List<BTreeNode<K, V>> level = leaves;
+            while (level.size() > 1) {
+                level = buildInnerLevel(level, perNode + 1);
+            }
+            root = level.get(0);
+        } finally {
+            rootLock.writeLock().unlock();
+            structureLock.readLock().unlock();
+        }
+
+        // the loaded entries never went through the log, a checkpoint covers them instead
+        if (wal != null) {
+            checkpoint();
+        }
+    }
+
+    // sorts entries with a fork/join merge sort first, then loads them like bulkLoad
+    public void parallelBulkLoad(Collection<Map.Entry<K, V>> entries, double fillFactor) {
+        // a wildcard array cast down to the entry type, java has no generic array creation
+        @SuppressWarnings("unchecked")
+        Map.Entry<K, V>[] sorted = entries.toArray((Map.Entry<K, V>[]) new Map.Entry<?, ?>[0]);
+        // stable, so the last of several entries with the same key still wins
+        Arrays.parallelSort(sorted, Map.Entry.comparingByKey());
+        bulkLoad(Arrays.asList(sorted).iterator(), fillFactor);
+    }
+
+    // the last leaf gets whatever is left over, top it up from its left neighbour so it
+    // isn't underfull
+    private void balanceLastLeaf(List<BTreeNode<K, V>> leaves) {
+        if (leaves.size() < 2) {
+            return;
+        }
+        BTreeNode<K, V> last = leaves.get(leaves.size() - 1);
+        BTreeNode<K, V> previous = leaves.get(leaves.size() - 2);
+        int total = previous.getKeys().size() + last.getKeys().size();
+        int move = total / 2 - last.getKeys().size();
+        if (move <= 0) {
+            return;
+        }
+        int from = previous.getKeys().size() - move;
+        last.getKeys().addAll(0, previous.getKeys().subList(from, previous.getKeys().size()));
+        last.getValues().addAll(0, previous.getValues().subList(from, previous.getValues().size()));
+        previous.getKeys().subList(from, previous.getKeys().size()).clear();
+        previous.getValues().subList(from, previous.getValues().size()).clear();
+    }
+
+    // groups children into parents of at most maxChildren, spread evenly so no parent ends up
+    // with a single child. a parent's keys are the smallest keys of its children but the first
+    private List<BTreeNode<K, V>> buildInnerLevel(List<BTreeNode<K, V>> children, int maxChildren) {
+        int count = children.size();
+        int groups = (count + maxChildren - 1) / maxChildren;
+        if (groups > 1 && count / groups < 2) {
+            groups = count / 2;
+        }
+
+        List<BTreeNode<K, V>> parents = new ArrayList<>(groups);
+        int start = 0;
+        for (int g = 0; g < groups; g++) {
+            int end = start + count / groups + (g < count % groups ? 1 : 0);
+            BTreeNode<K, V> parent = new BTreeNode<>(false);
+            markChanged(parent);
+            for (int i = start; i < end; i++) {
+                BTreeNode<K, V> child = children.get(i);
+                if (i > start) {
+                    parent.getKeys().add(leftmostLeaf(child).getKeys().get(0));
+                }
+                parent.getChildren().add(child);
+                child.setParent(parent);
+            }
+            parents.add(parent);
+            start = end;
+        }
+        return parents;
+    }
+
+    private BTreeNode<K, V> leftmostLeaf(BTreeNode<K, V> node) {
+        while (!node.isLeafNode()) {
+            node = node.getChildren().get(0);
+        }
+        return node;
+    }
+
+    // inserts entries grouped by the leaf they fall in: one descent and one leaf latch per group.
+    // a group that overflows its leaf is inserted on the pessimistic path, and the leaf is then
+    // cut into as many pieces as needed in one go. the log is committed once for the batch
+    public void insertAll(Collection<Map.Entry<K, V>> entries) {
+        List<Map.Entry<K, V>> sorted = new ArrayList<>(entries);
+        sorted.sort(Map.Entry.comparingByKey());
+
+        int start = 0;
+        while (start < sorted.size()) {
+            Fence<K> fence = new Fence<>();
+            BTreeNode<K, V> leaf = findLeafNodeOptimistic(sorted.get(start).getKey(), fence);
+            if (leaf == null) {
+                insertPessimistic(sorted.get(start).getKey(), sorted.get(start).getValue());
+                start++;
+                continue;
+            }
+            int end = groupEnd(sorted, start, fence);
+            if (isSafe(leaf, true, end - start)) {
+                try {
+                    for (int i = start; i < end; i++) {
+                        insertIntoNode(leaf, sorted.get(i).getKey(), sorted.get(i).getValue());
+                    }
+                } finally {
+                    leaf.unlockWrite();
+                }
+                start = end;
+            } else {
+                leaf.unlockWrite();
+                start = insertGroupPessimistic(sorted, start, end - start);
+            }
+        }
+
+        // cheap when nothing is pending, so no need to track whether the batch swapped a buffer
+        flusher.awaitCapacity();
+        if (wal != null) {
+            wal.commit();
+        }
+    }
+
+    // inserts up to count entries of the group at start with every node that may split
+    // latched, returns the index after the last one inserted
+    private int insertGroupPessimistic(List<Map.Entry<K, V>> sorted, int start, int count) {
+        Deque<BTreeNode<K, V>> latched = new ArrayDeque<>();
+        structureLock.readLock().lock();
+        rootLock.writeLock().lock();
+        boolean rootLatched = true;
+        try {
+            if (root == null) {
+                rootLock.writeLock().unlock();
+                rootLatched = false;
+                insertPessimistic(sorted.get(start).getKey(), sorted.get(start).getValue());
+                return start + 1;
+            }
+
+            // the leaf's range may have grown since the optimistic pass, the path is only
+            // latched for count keys
+            Fence<K> fence = new Fence<>();
+            rootLatched = findLeafNode(root, sorted.get(start).getKey(), true, count, fence, latched);
+            BTreeNode<K, V> leaf = latched.getLast();
+            int end = Math.min(groupEnd(sorted, start, fence), start + count);
+            for (int i = start; i < end; i++) {
+                insertIntoNode(leaf, sorted.get(i).getKey(), sorted.get(i).getValue());
+            }
+
+            // pieces of about equal size, split off from the right so leaf keeps the first one
+            int size = leaf.getKeys().size();
+            int pieces = (size + bufferSize - 1) / bufferSize;
+            int pieceSize = (size + pieces - 1) / pieces;
+            while (leaf.getKeys().size() > bufferSize) {
+                splitNode(leaf, leaf.getKeys().size() - pieceSize);
+            }
+            return end;
+        } finally {
+            unlockAll(latched);
+            if (rootLatched) {
+                rootLock.writeLock().unlock();
+            }
+            structureLock.readLock().unlock();
+        }
+    }
+
+    // first index from start on whose key lies beyond the fence
+    private int groupEnd(List<Map.Entry<K, V>> sorted, int start, Fence<K> fence) {
+        int end = start + 1;
+        while (end < sorted.size() && fence.covers(sorted.get(end).getKey())) {
+            end++;
+        }
+        return end;
+    }
+
+    // value of every key that is present, looked up with one descent per leaf
+    public Map<K, V> getAll(Collection<K> keys) {
+        List<K> sorted = new ArrayList<>(keys);
+        sorted.sort(null);
+
+        Map<K, V> found = new HashMap<>();
+        int start = 0;
+        while (start < sorted.size()) {
+            Fence<K> fence = new Fence<>();
+            BTreeNode<K, V> leaf = findLeafNodeShared(sorted.get(start), fence);
+            if (leaf == null) {
+                break;
+            }
+            try {
+                do {
+                    K key = sorted.get(start);
+                    int index = KeySearch.indexOf(leaf.getKeys(), key);
+                    if (index != -1) {
+                        found.put(key, leaf.getValues().get(index));
+                    }
+                    start++;
+                } while (start < sorted.size() && fence.covers(sorted.get(start)));
+            } finally {
+                leaf.unlockRead();
+            }
+        }
+        return found;
+    }
+
+    // removes keys grouped by leaf under one latch per group. a group that could leave its
+    // leaf underfull falls back to delete's one key at a time path, which rebalances
+    public void deleteAll(Collection<K> keys) {
+        List<K> sorted = new ArrayList<>(keys);
+        sorted.sort(null);
+
+        int start = 0;
+        while (start < sorted.size()) {
+            Fence<K> fence = new Fence<>();
+            BTreeNode<K, V> leaf = findLeafNodeOptimistic(sorted.get(start), fence);
+            if (leaf == null) {
+                break;
+            }
+            int end = start + 1;
+            while (end < sorted.size() && fence.covers(sorted.get(end))) {
+                end++;
+            }
+            if (relaxedDeletes || isSafe(leaf, false, end - start)) {
+                try {
+                    for (int i = start; i < end; i++) {
+                        removeFromNode(leaf, sorted.get(i));
+                    }
+                } finally {
+                    leaf.unlockWrite();
+                }
+            } else {
+                leaf.unlockWrite();
+                for (int i = start; i < end; i++) {
+                    deleteKey(sorted.get(i));
+                }
+            }
+            start = end;
+        }
+
+        if (wal != null) {
+            wal.commit();
+        }
+    }
+
     public V search(K key) {
-        root.lockRead();
+        long start = TreeMetrics.start();
+        V value = searchKey(key);
+        TreeMetrics.record(TreeMetrics.SEARCH, start);
+        return value;
+    }
+
+    private V searchKey(K key) {
+        BTreeNode<K, V> node = findLeafNodeShared(key);
+        if (node == null) {
+            return null;
+        }
+
         try {
-            BTreeNode<K, V> node = findLeafNode(root, key);
-            int index = node.getKeys().indexOf(key);
+            int index = KeySearch.indexOf(node.getKeys(), key);
             if (index != -1) {
                 return node.getValues().get(index);
             } else {
                 return null;
             }
         } finally {
-            root.unlockRead();
+            node.unlockRead();
+        }
+    }
+
+    private BTreeNode<K, V> findLeafNodeShared(K key) {
+        return findLeafNodeShared(key, null);
+    }
+
+    // read-latch crabbing, returns the read-latched leaf for key (the leftmost leaf for a null key),
+    // or null if the tree is empty
+    private BTreeNode<K, V> findLeafNodeShared(K key, Fence<K> fence) {
+        rootLock.readLock().lock();
+        BTreeNode<K, V> node = root;
+        if (node == null) {
+            rootLock.readLock().unlock();
+            return null;
+        }
+        node.lockRead();
+        rootLock.readLock().unlock();
+
+        while (!node.isLeafNode()) {
+            int index = key == null ? 0 : childIndex(node, key);
+            if (fence != null) {
+                fence.narrow(node.getKeys(), index);
+            }
+            BTreeNode<K, V> child = node.getChildren().get(index);
+            child.lockRead();
+            node.unlockRead();
+            node = child;
         }
+        return node;
     }
 
+    // keys in [from, to] in ascending order, a null bound is unbounded
+    public Cursor scan(K from, K to) {
+        return new Cursor(from, to);
+    }
+
+    public Spliterator<Map.Entry<K, V>> spliterator(K from, K to) {
+        return Spliterators.spliteratorUnknownSize(scan(from, to), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    public Stream<Map.Entry<K, V>> stream(K from, K to) {
+        return StreamSupport.stream(spliterator(from, to), false);
+    }
+
+    // walks the leaf chain one leaf at a time and holds no latch between calls, so it sees
+    // writes made after it was opened the way ConcurrentSkipListMap iterators do
+    public class Cursor implements Iterator<Map.Entry<K, V>> {
+        private final K to;
+        private final Deque<Map.Entry<K, V>> pending = new ArrayDeque<>();
+        private BTreeNode<K, V> node;
+        private K lastKey;
+        private boolean started;
+        private boolean exhausted;
+
+        private Cursor(K from, K to) {
+            this.to = to;
+            this.lastKey = from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (pending.isEmpty() && !exhausted) {
+                advance();
+            }
+            return !pending.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = pending.removeFirst();
+            lastKey = entry.getKey();
+            return entry;
+        }
+
+        // buffers the rest of the current leaf, moving right until a leaf has something to return.
+        // the next leaf is only try-latched, borrowOrMerge latches siblings right to left
+        private void advance() {
+            BTreeNode<K, V> current;
+            if (node == null) {
+                current = findLeafNodeShared(lastKey);
+                if (current == null) {
+                    exhausted = true;
+                    return;
+                }
+            } else {
+                current = node;
+                current.lockRead();
+            }
+
+            while (true) {
+                int start = 0;
+                if (lastKey != null) {
+                    start = started ? KeySearch.upperBound(current.getKeys(), lastKey)
+                            : KeySearch.lowerBound(current.getKeys(), lastKey);
+                }
+                for (int i = start; i < current.getKeys().size(); i++) {
+                    K key = current.getKeys().get(i);
+                    if (to != null && key.compareTo(to) > 0) {
+                        exhausted = true;
+                        break;
+                    }
+                    pending.addLast(new AbstractMap.SimpleImmutableEntry<>(key, current.getValues().get(i)));
+                }
+                started = true;
+
+                BTreeNode<K, V> next = current.getRightLink();
+                if (!pending.isEmpty() || exhausted || next == null) {
+                    exhausted |= next == null;
+                    node = current;
+                    current.unlockRead();
+                    return;
+                }
+                if (next.tryLockRead()) {
+                    current.unlockRead();
+                    current = next;
+                } else {
+                    current.unlockRead();
+                    current = findLeafNodeShared(lastKey);
+                    if (current == null) {
+                        exhausted = true;
+                        return;
+                    }
+                }
+            }
+        }
+    }
 
     public void delete(K key) {
-        root.lockWrite();
+        long start = TreeMetrics.start();
+        deleteKey(key);
+        if (wal != null) {
+            wal.commit();
+        }
+        TreeMetrics.record(TreeMetrics.DELETE, start);
+    }
+
+    private void deleteKey(K key) {
+        BTreeNode<K, V> leaf = findLeafNodeOptimistic(key);
+        if (leaf == null) {
+            return;
+        }
+        if (relaxedDeletes || isSafe(leaf, false)) {
+            try {
+                removeFromNode(leaf, key);
+            } finally {
+                leaf.unlockWrite();
+            }
+            return;
+        }
+        leaf.unlockWrite();
+
+        Deque<BTreeNode<K, V>> latched = new ArrayDeque<>();
+        structureLock.readLock().lock();
+        rootLock.writeLock().lock();
+        boolean rootLatched = true;
         try {
             if (root == null) {
                 return;
             }
 
-            BTreeNode<K, V> node = findLeafNode(root, key);
-            int index = node.getKeys().indexOf(key);
-            if (index != -1) {
-                node.getKeys().remove(index);
-                node.getValues().remove(index);
-                node.getBuffer().remove(key);
+            rootLatched = findLeafNode(root, key, false, latched);
+            BTreeNode<K, V> node = latched.getLast();
+            if (removeFromNode(node, key)) {
                 if (node == root && node.getKeys().isEmpty()) {
+                    freePage(node);
                     root = null;
                 } else if (node != root && node.getKeys().size() < bufferSize / 2) {
                     borrowOrMerge(node);
                 }
             }
         } finally {
-            root.unlockWrite();
+            unlockAll(latched);
+            if (rootLatched) {
+                rootLock.writeLock().unlock();
+            }
+            structureLock.readLock().unlock();
+        }
+    }
+
+    private boolean removeFromNode(BTreeNode<K, V> node, K key) {
+        int index = KeySearch.indexOf(node.getKeys(), key);
+        if (index == -1) {
+            return false;
+        }
+        markChanged(node); // before logging, as in insertIntoNode
+        if (wal != null) {
+            wal.logDelete(key);
+        }
+        node.getKeys().remove(index);
+        node.getValues().remove(index);
+        node.getBuffer().remove(key);
+        if (relaxedDeletes && node.getKeys().size() == compactBelow - 1) {
+            compactionHints.add(key);
+        }
+        return true;
+    }
+
+    // switches delete to lazy rebalancing and consolidates leaves that fell below fillThreshold
+    // of bufferSize in the background every intervalMillis. empty leaves stay in the tree as
+    // placeholders until then. above half full a merge could overflow, so fillThreshold is
+    // at most 0.5
+    public synchronized void startCompactor(double fillThreshold, long intervalMillis) {
+        if (fillThreshold <= 0 || fillThreshold > 0.5) {
+            throw new IllegalArgumentException("fillThreshold must be in (0, 0.5]");
+        }
+        if (compactor != null) {
+            throw new IllegalStateException("compactor already running");
+        }
+        compactBelow = Math.max(1, (int) (bufferSize * fillThreshold));
+        relaxedDeletes = true;
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "btree-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactQuietly, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // rebalances every leaf queued so far, one pessimistic descent per leaf
+    public void compact() {
+        K key;
+        while ((key = compactionHints.poll()) != null) {
+            compactLeaf(key);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // the leaf key leads to may not be the one that was queued, it only matters whether it is
+    // still underfull. ancestors stay latched like for a delete, in case the merge cascades
+    private void compactLeaf(K key) {
+        Deque<BTreeNode<K, V>> latched = new ArrayDeque<>();
+        structureLock.readLock().lock();
+        rootLock.writeLock().lock();
+        boolean rootLatched = true;
+        try {
+            if (root == null) {
+                return;
+            }
+            rootLatched = findLeafNode(root, key, false, latched);
+            BTreeNode<K, V> leaf = latched.getLast();
+            if (leaf != root && leaf.getKeys().size() < compactBelow) {
+                BTreeNode<K, V> parent = leaf.getParent();
+                int children = parent.getChildren().size();
+                borrowOrMerge(leaf);
+                // a borrow moves one key, come back until the leaf is full enough or merges
+                if (parent.getChildren().size() == children && leaf.getKeys().size() < compactBelow) {
+                    compactionHints.add(key);
+                }
+            }
+        } finally {
+            unlockAll(latched);
+            if (rootLatched) {
+                rootLock.writeLock().unlock();
+            }
+            structureLock.readLock().unlock();
         }
     }
+
+    // leaves borrow a key and value and refresh the separator from the leaf on the right,
+    // inner nodes rotate a child through the parent's separator. merges pull the separator
+    // back down into inner nodes and drop it for leaves
     private void borrowOrMerge(BTreeNode<K, V> node) {
         BTreeNode<K, V> parent = node.getParent();
         int index = parent.getChildren().indexOf(node);
 
-        if (index > 0 && parent.getChildren().get(index - 1).getKeys().size() > bufferSize / 2) {
-            BTreeNode<K, V> sibling = parent.getChildren().get(index - 1);
-            K key = sibling.getKeys().remove(sibling.getKeys().size() - 1);
-            V value = sibling.getValues().remove(sibling.getValues().size() - 1);
-            sibling.getBuffer().remove(key);
-            node.getKeys().add(0, key);
-            node.getValues().add(0, value);
-            node.getBuffer().put(key, value);
-
-            K parentKey = parent.getKeys().get(index - 1);
-            V parentValue = parent.getValues().get(index - 1);
-            parent.getBuffer().put(parentKey, parentValue);
-            parent.getKeys().set(index - 1, sibling.getKeys().get(sibling.getKeys().size() - 1));
-            parent.getValues().set(index - 1, sibling.getValues().get(sibling.getValues().size() - 1));
-            sibling.getBuffer().put(sibling.getKeys().get(sibling.getKeys().size() - 1),
-                    sibling.getValues().get(sibling.getValues().size() - 1));
-        } else if (index < parent.getChildren().size() - 1 && parent.getChildren().get(index + 1).getKeys().size() > bufferSize / 2) {
-            BTreeNode<K, V> sibling = parent.getChildren().get(index + 1);
-            K key = sibling.getKeys().remove(0);
-            V value = sibling.getValues().remove(0);
-            sibling.getBuffer().remove(key);
-            node.getKeys().add(key);
-            node.getValues().add(value);
-            node.getBuffer().put(key, value);
+        // parent is latched by the caller, so siblings can be latched without racing a split
+        BTreeNode<K, V> left = index > 0 ? parent.getChildren().get(index - 1) : null;
+        BTreeNode<K, V> right = index < parent.getChildren().size() - 1 ? parent.getChildren().get(index + 1) : null;
+        if (left != null) {
+            left.lockWrite();
+        }
+        if (right != null) {
+            right.lockWrite();
+        }
 
-            K parentKey = parent.getKeys().get(index);
-            V parentValue = parent.getValues().get(index);
-            parent.getBuffer().put(parentKey, parentValue);
-            parent.getKeys().set(index, sibling.getKeys().get(0));
-            parent.getValues().set(index, sibling.getValues().get(0));
-            sibling.getBuffer().put(sibling.getKeys().get(0), sibling.getValues().get(0));
-        } else if (index > 0) {
-            BTreeNode<K, V> sibling = parent.getChildren().get(index - 1);
-            sibling.getKeys().addAll(node.getKeys());
-            sibling.getValues().addAll(node.getValues());
-            sibling.getBuffer().putAll(node.getBuffer());
-            sibling.getChildren().addAll(node.getChildren());
-            for (BTreeNode<K, V> child : node.getChildren()) {
-                child.setParent(sibling);
-            }
-            parent.getKeys().remove(index - 1);
-            parent.getValues().remove(index - 1);
-            parent.getChildren().remove(index);
-            parent.getBuffer().removeAll(node.getBuffer());
-            if (parent == root && parent.getKeys().isEmpty()) {
-                root = sibling;
-                sibling.setParent(null);
-            } else if (parent != root && parent.getKeys().size() < bufferSize / 2) {
-                borrowOrMerge(parent);
+        boolean parentUnderflow = false;
+        try {
+            if (left != null && left.getKeys().size() > Math.max(1, bufferSize / 2)) {
+                TreeMetrics.count(TreeMetrics.BORROWS);
+                int last = left.getKeys().size() - 1;
+                if (node.isLeafNode()) {
+                    K key = left.getKeys().remove(last);
+                    node.getKeys().add(0, key);
+                    node.getValues().add(0, left.getValues().remove(last));
+                    moveBuffered(key, left, node);
+                    parent.getKeys().set(index - 1, key);
+                } else {
+                    BTreeNode<K, V> child = left.getChildren().remove(left.getChildren().size() - 1);
+                    node.getKeys().add(0, parent.getKeys().get(index - 1));
+                    node.getChildren().add(0, child);
+                    child.setParent(node);
+                    parent.getKeys().set(index - 1, left.getKeys().remove(last));
+                }
+            } else if (right != null && right.getKeys().size() > Math.max(1, bufferSize / 2)) {
+                TreeMetrics.count(TreeMetrics.BORROWS);
+                if (node.isLeafNode()) {
+                    K key = right.getKeys().remove(0);
+                    node.getKeys().add(key);
+                    node.getValues().add(right.getValues().remove(0));
+                    moveBuffered(key, right, node);
+                    parent.getKeys().set(index, right.getKeys().get(0));
+                } else {
+                    BTreeNode<K, V> child = right.getChildren().remove(0);
+                    node.getKeys().add(parent.getKeys().get(index));
+                    node.getChildren().add(child);
+                    child.setParent(node);
+                    parent.getKeys().set(index, right.getKeys().remove(0));
+                }
+            } else {
+                // node merges into left, or right into node, the right one of the pair goes away
+                TreeMetrics.count(TreeMetrics.MERGES);
+                BTreeNode<K, V> survivor = left != null ? left : node;
+                BTreeNode<K, V> merged = left != null ? node : right;
+                int separator = left != null ? index - 1 : index;
+                if (!survivor.isLeafNode()) {
+                    survivor.getKeys().add(parent.getKeys().get(separator));
+                }
+                survivor.getKeys().addAll(merged.getKeys());
+                survivor.getValues().addAll(merged.getValues());
+                survivor.getBuffer().putAll(merged.getBuffer());
+                survivor.getChildren().addAll(merged.getChildren());
+                for (BTreeNode<K, V> child : merged.getChildren()) {
+                    child.setParent(survivor);
+                }
+                parent.getKeys().remove(separator);
+                parent.getChildren().remove(separator + 1);
+                merged.getBuffer().clear();
+                dirtyNodes.remove(merged);
+                freePage(merged);
+                if (merged.isLeafNode()) {
+                    survivor.setRightLink(merged.getRightLink());
+                    detachLeaf(merged, survivor);
+                }
+                if (parent == root && parent.getKeys().isEmpty()) {
+                    freePage(parent);
+                    root = survivor;
+                    survivor.setParent(null);
+                } else if (parent != root && parent.getKeys().size() < bufferSize / 2) {
+                    parentUnderflow = true;
+                }
             }
-        } else {
-            BTreeNode<K, V> sibling = parent.getChildren().get(index + 1);
-            node.getKeys().addAll(sibling.getKeys());
-            node.getValues().addAll(sibling.getValues());
-            node.getBuffer().putAll(sibling.getBuffer());
-            node.getChildren().addAll(sibling.getChildren());
-            for (BTreeNode<K, V> child : sibling.getChildren()) {
-                child.setParent(node);
+            markDirty(node);
+            markDirty(left);
+            markDirty(right);
+            markChanged(node);
+            markChanged(parent);
+            markChanged(left);
+            markChanged(right);
+        } finally {
+            if (left != null) {
+                left.unlockWrite();
             }
-            parent.getKeys().remove(index);
-            parent.getValues().remove(index);
-            parent.getChildren().remove(index + 1);
-            parent.getBuffer().removeAll(sibling.getBuffer());
-            if (parent == root && parent.getKeys().isEmpty()) {
-                root = node;
-                node.setParent(null);
-            } else if (parent != root && parent.getKeys().size() < bufferSize / 2) {
-                borrowOrMerge(parent);
+            if (right != null) {
+                right.unlockWrite();
             }
         }
+
+        if (parentUnderflow) {
+            borrowOrMerge(parent);
+        }
+    }
+
+    // an unflushed value follows its key to the other leaf
+    private void moveBuffered(K key, BTreeNode<K, V> from, BTreeNode<K, V> to) {
+        V value = from.getBuffer().remove(key);
+        if (value != null) {
+            to.getBuffer().put(key, value);
+        }
+    }
+
+    // a cursor may still point at a merged-away leaf: empty it and link it back to the leaf
+    // that took its keys, the cursor then skips what it has already returned
+    private void detachLeaf(BTreeNode<K, V> leaf, BTreeNode<K, V> survivor) {
+        leaf.getKeys().clear();
+        leaf.getValues().clear();
+        leaf.getBuffer().clear();
+        leaf.setRightLink(survivor);
     }
 
     public void loadLevelToBuffer(int level) {
-        root.lockWrite();
+        rootLock.writeLock().lock();
+        List<BTreeNode<K, V>> latched = new ArrayList<>();
         try {
             if (root == null) {
                 return;
             }
 
             List<BTreeNode<K, V>> levelNodes = new ArrayList<>();
-            collectLevelNodes(root, level, 0, levelNodes);
+            collectLevelNodes(root, level, 0, levelNodes, latched);
 
             for (BTreeNode<K, V> node : levelNodes) {
                 loadNodeToBuffer(node);
+                markDirty(node);
+                markChanged(node);
             }
         } finally {
-            root.unlockWrite();
+            for (BTreeNode<K, V> node : latched) {
+                node.unlockWrite();
+            }
+            rootLock.writeLock().unlock();
         }
     }
 
 
+    // latches top-down like every other operation, so it can run next to writers already in the tree
     private void collectLevelNodes(BTreeNode<K, V> currentNode, int targetLevel, int currentLevel,
-            List<BTreeNode<K, V>> levelNodes) {
+            List<BTreeNode<K, V>> levelNodes, List<BTreeNode<K, V>> latched) {
+        currentNode.lockWrite();
+        latched.add(currentNode);
         if (currentLevel == targetLevel) {
             levelNodes.add(currentNode);
         } else {
             if (!currentNode.isLeafNode()) {
                 for (BTreeNode<K, V> child : currentNode.getChildren()) {
-                    collectLevelNodes(child, targetLevel, currentLevel + 1, levelNodes);
+                    collectLevelNodes(child, targetLevel, currentLevel + 1, levelNodes, latched);
                 }
             }
         }
     }
 
+    // inner nodes only hold separators, there is nothing to load
     private void loadNodeToBuffer(BTreeNode<K, V> node) {
         node.setBuffer(new HashMap<>());
-        for (int i = 0; i < node.getKeys().size(); i++) {
+        for (int i = 0; i < node.getValues().size(); i++) {
             K key = node.getKeys().get(i);
             V value = node.getValues().get(i);
             node.getBuffer().put(key, value);
         }
     }
 
+    // only visits nodes that were written since they were last flushed, one latch at a time
     public void writeBufferToDisk() {
-        root.lockWrite();
+        long start = TreeMetrics.start();
+        for (BTreeNode<K, V> node : dirtyNodes) {
+            node.lockWrite();
+            try {
+                dirtyNodes.remove(node);
+                TreeMetrics.count(TreeMetrics.FLUSHED_ENTRIES, node.getBuffer().size());
+                flusher.submit(node.getBuffer());
+                node.setBuffer(new HashMap<>());
+                markChanged(node);
+            } finally {
+                node.unlockWrite();
+            }
+        }
+        flusher.drain();
+        partition.flush();
+        TreeMetrics.record(TreeMetrics.FLUSH, start);
+    }
+
+    // writes the pages of every node changed since the last checkpoint to storagePath/checkpoint.
+    // splits and merges wait while the changed pages are copied, leaf writes go on: the copies
+    // are taken after the log's current lsn was noted and every leaf write is logged under the
+    // leaf's latch, so replaying the log from that lsn on top of the pages restores the tree.
+    // the pages are encoded and written after the latches are released, and only the log
+    // before that lsn is dropped
+    public void checkpoint() {
+        checkpointLock.lock();
         try {
-            if (root == null) {
-                return;
+            if (checkpoints == null) {
+                checkpoints = new CheckpointStore<>(Paths.get(storagePath, "checkpoint"), Codec.serializable(),
+                        Codec.serializable());
             }
 
-            writeNodeBufferToDisk(root);
+            long lsn;
+            long rootPageId;
+            List<BTreeNode<K, V>> copied = new ArrayList<>();
+            List<CheckpointStore.Page<K, V>> pages = new ArrayList<>();
+            List<Long> freed = new ArrayList<>();
+            structureLock.writeLock().lock();
+            try {
+                lsn = wal != null ? wal.getAppendedLsn() : 0;
+                for (BTreeNode<K, V> node : changedNodes) {
+                    changedNodes.remove(node);
+                    if (!removedNodes.contains(node)) {
+                        copied.add(node);
+                    }
+                }
+                removedNodes.clear();
+                for (Long pageId : freedPages) {
+                    freedPages.remove(pageId);
+                    freed.add(pageId);
+                }
+
+                // ids first, a parent refers to its children by page id
+                for (BTreeNode<K, V> node : copied) {
+                    if (node.getPageId() == BTreeNode.NO_PAGE) {
+                        node.setPageId(checkpoints.allocatePageId());
+                    }
+                }
+                for (BTreeNode<K, V> node : copied) {
+                    node.lockRead();
+                    try {
+                        pages.add(toPage(node));
+                    } finally {
+                        node.unlockRead();
+                    }
+                }
+                rootPageId = root != null ? root.getPageId() : CheckpointStore.NO_PAGE;
+            } finally {
+                structureLock.writeLock().unlock();
+            }
+
+            try {
+                checkpoints.write(pages, freed, rootPageId);
+            } catch (IOException | RuntimeException e) {
+                // the pages go with the next checkpoint
+                changedNodes.addAll(copied);
+                freedPages.addAll(freed);
+                throw e;
+            }
+            if (wal != null) {
+                wal.truncate(lsn);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         } finally {
-            root.unlockWrite();
+            checkpointLock.unlock();
         }
     }
-    private void writeNodeBufferToDisk(BTreeNode<K, V> node) {
-        if (!node.isLeafNode()) {
-            for (BTreeNode<K, V> child : node.getChildren()) {
-                writeNodeBufferToDisk(child);
-            }
+
+    private CheckpointStore.Page<K, V> toPage(BTreeNode<K, V> node) {
+        long[] children = new long[node.getChildren().size()];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = node.getChildren().get(i).getPageId();
         }
+        return new CheckpointStore.Page<>(node.getPageId(), node.isLeafNode(), new ArrayList<>(node.getKeys()),
+                new ArrayList<>(node.getValues()), children, new HashMap<>(node.getBuffer()));
+    }
 
-        for (K key : node.getBuffer().keySet()) {
-            V value = node.getBuffer().get(key);
-            partition.insert(key, value);
+    // rebuilds the tree from the last checkpoint, if there is one. nodes are created straight
+    // from their pages and wired up by page id, nothing is inserted and nothing splits.
+    // only meant for a tree that has not been used yet
+    private void restore() throws IOException {
+        Path directory = Paths.get(storagePath, "checkpoint");
+        if (!Files.exists(directory)) {
+            return;
+        }
+        checkpoints = new CheckpointStore<>(directory, Codec.serializable(), Codec.serializable());
+        Map<Long, CheckpointStore.Page<K, V>> pages = checkpoints.readAll();
+        if (checkpoints.getRootPageId() == CheckpointStore.NO_PAGE) {
+            return;
         }
 
-        node.getBuffer().clear();
+        Map<Long, BTreeNode<K, V>> nodes = new HashMap<>();
+        for (CheckpointStore.Page<K, V> page : pages.values()) {
+            BTreeNode<K, V> node = new BTreeNode<>(page.isLeaf());
+            node.setPageId(page.getPageId());
+            node.setKeys(page.getKeys());
+            node.setValues(page.getValues());
+            node.setBuffer(page.getBuffer());
+            nodes.put(page.getPageId(), node);
+        }
+        List<BTreeNode<K, V>> leaves = new ArrayList<>();
+        root = nodes.get(checkpoints.getRootPageId());
+        link(root, pages, nodes, leaves);
+        for (int i = 0; i + 1 < leaves.size(); i++) {
+            leaves.get(i).setRightLink(leaves.get(i + 1));
+        }
+    }
+
+    // sets children and parents below node and collects the leaves in key order
+    private void link(BTreeNode<K, V> node, Map<Long, CheckpointStore.Page<K, V>> pages,
+            Map<Long, BTreeNode<K, V>> nodes, List<BTreeNode<K, V>> leaves) {
+        if (!node.getBuffer().isEmpty()) {
+            dirtyNodes.add(node);
+        }
+        if (node.isLeafNode()) {
+            leaves.add(node);
+            return;
+        }
+        for (long childId : pages.get(node.getPageId()).getChildren()) {
+            BTreeNode<K, V> child = nodes.get(childId);
+            child.setParent(node);
+            node.getChildren().add(child);
+            link(child, pages, nodes, leaves);
+        }
+    }
+
+    // flushes everything and stops the flusher, the tree must not be used afterwards. a failed
+    // flush is thrown once everything is closed
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            writeBufferToDisk();
+        } finally {
+            flusher.close();
+            try {
+                partition.close();
+            } finally {
+                if (wal != null) {
+                    try {
+                        wal.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
     }
 }
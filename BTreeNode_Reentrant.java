@@ -6,12 +6,17 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReadWriteLock;
 
 class BTreeNode<K extends Comparable<K>, V> {
+    public static final long NO_PAGE = -1;
+
     private List<K> keys;
     private List<V> values;
     private List<BTreeNode<K, V>> children;
     private BTreeNode<K, V> parent;
     private boolean leafNode;
     private Map<K, V> buffer;
+    private BTreeNode<K, V> rightLink;
+    private K highKey; // exclusive upper bound of the node, null for the rightmost node of a level
+    private long pageId; // checkpoint page of the node, NO_PAGE until first written
 
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     //don't lock read, only lock write
@@ -23,6 +28,9 @@ class BTreeNode<K extends Comparable<K>, V> {
         this.parent = null;
         this.leafNode = leafNode;
         this.buffer = new HashMap<>();
+        this.rightLink = null;
+        this.highKey = null;
+        this.pageId = NO_PAGE;
     }
 
     public List<K> getKeys() {
@@ -72,8 +80,45 @@ class BTreeNode<K extends Comparable<K>, V> {
     public void setBuffer(Map<K, V> buffer) {
         this.buffer = buffer;
     }
+
+    public BTreeNode<K, V> getRightLink() {
+        return rightLink;
+    }
+
+    public void setRightLink(BTreeNode<K, V> rightLink) {
+        this.rightLink = rightLink;
+    }
+
+    public K getHighKey() {
+        return highKey;
+    }
+
+    public void setHighKey(K highKey) {
+        this.highKey = highKey;
+    }
+
+    public long getPageId() {
+        return pageId;
+    }
+
+    public void setPageId(long pageId) {
+        this.pageId = pageId;
+    }
+
+    // with metrics on, the wait is only timed when the latch is contended. the untimed tryLock
+    // lets a reader barge past a queued writer, so it is only taken while metrics are on
     public void lockRead() {
-        lock.readLock().lock();
+        if (!TreeMetrics.isEnabled()) {
+            lock.readLock().lock();
+        } else if (!lock.readLock().tryLock()) {
+            long start = TreeMetrics.start();
+            lock.readLock().lock();
+            TreeMetrics.record(TreeMetrics.LOCK_WAIT, start);
+        }
+    }
+
+    public boolean tryLockRead() {
+        return lock.readLock().tryLock();
     }
 
     public void unlockRead() {
@@ -81,7 +126,13 @@ class BTreeNode<K extends Comparable<K>, V> {
     }
 
     public void lockWrite() {
-        lock.writeLock().lock();
+        if (!TreeMetrics.isEnabled()) {
+            lock.writeLock().lock();
+        } else if (!lock.writeLock().tryLock()) {
+            long start = TreeMetrics.start();
+            lock.writeLock().lock();
+            TreeMetrics.record(TreeMetrics.LOCK_WAIT, start);
+        }
     }
 
     public void unlockWrite() {
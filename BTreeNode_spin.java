@@ -1,8 +1,12 @@
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 class BTreeNode<K extends Comparable<K>, V> {
     private List<K> keys;
@@ -12,9 +16,15 @@ class BTreeNode<K extends Comparable<K>, V> {
     private boolean leafNode;
     private Map<K, V> buffer;
 
-    private AtomicInteger version = new AtomicInteger(0);
+    private final AtomicInteger version = new AtomicInteger(0);
 
     private static final int NODE_LOCKED = 1;
+    private static final int SPIN_LIMIT = 64; // plain spins before backing off
+    private static final int BACKOFF_ROUNDS = 10; // pauses of 1, 2, 4 ... 512 spins, then park
+    private static final long MAX_PARK_NANOS = 1_000_000; // parked waiters re-check at least this often
+    private static final long NO_DEADLINE = 0;
+    private static final int TIMED_OUT = -1; // never a version, unlocked versions are even
+    private volatile ConcurrentLinkedQueue<Thread> waiters; // threads parked in awaitUnlocked
 
     public BTreeNode(boolean leafNode) {
         this.keys = new ArrayList<>();
@@ -75,46 +85,143 @@ class BTreeNode<K extends Comparable<K>, V> {
 
     public void lockNode() {
         int currentVersion;
+        int failedCas = -1;
         do {
-            currentVersion = version.get();
-            if ((currentVersion & NODE_LOCKED) != 0) {
-                continue;
-            }
+            failedCas++;
+            currentVersion = stableVersion();
         } while (!version.compareAndSet(currentVersion, currentVersion | NODE_LOCKED));
+        TreeMetrics.count(TreeMetrics.SPIN_ITERATIONS, failedCas);
     }
-/*    prevent deadlock:
 
-    public boolean lockNode(long timeout, TimeUnit unit) {
-        long stopTime = System.nanoTime() + unit.toNanos(timeout);
-        int currentVersion;
+    public boolean tryLockNode() {
+        int currentVersion = version.get();
+        return (currentVersion & NODE_LOCKED) == 0
+                && version.compareAndSet(currentVersion, currentVersion | NODE_LOCKED);
+    }
 
-        do {
-            currentVersion = version.get();
+    // prevent deadlock: gives up after timeout, so the caller can back out and restart
+    public boolean tryLockNode(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (deadline == NO_DEADLINE) {
+            deadline++;
+        }
+        while (true) {
+            int currentVersion = version.get();
             if ((currentVersion & NODE_LOCKED) != 0) {
-                if (System.nanoTime() > stopTime) {
-                    return false; //if takes too long time, return false, prevent deadlock 
+                currentVersion = awaitUnlocked(deadline);
+                if (currentVersion == TIMED_OUT) {
+                    return false;
                 }
-                continue;
             }
-        } while (!version.compareAndSet(currentVersion, currentVersion | NODE_LOCKED));
-
-        return true;
+            if (version.compareAndSet(currentVersion, currentVersion | NODE_LOCKED)) {
+                return true;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+        }
     }
-*/
 
+    // clears the lock bit and bumps the version in one step, so optimistic readers
+    // that read the node while it was locked fail validate(). parked waiters are woken
+    // after the version is published, see awaitUnlocked
     public void unlockNode() {
-        int currentVersion;
-        do {
-            currentVersion = version.get();
-        } while (!version.compareAndSet(currentVersion, currentVersion & ~NODE_LOCKED));
+        version.incrementAndGet();
+        ConcurrentLinkedQueue<Thread> queue = waiters;
+        if (queue != null) {
+            Thread waiter;
+            while ((waiter = queue.poll()) != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
     }
 
     public int stableVersion() {
-        int currentVersion;
-        do {
-            currentVersion = version.get();
-        } while ((currentVersion & NODE_LOCKED) != 0);
+        int currentVersion = version.get();
+        if ((currentVersion & NODE_LOCKED) == 0) {
+            return currentVersion;
+        }
+        return awaitUnlocked(NO_DEADLINE);
+    }
+
+    // waits until the node is unlocked and returns that version, or TIMED_OUT once deadline
+    // (System.nanoTime(), NO_DEADLINE for none) has passed. a short lock hold is caught by
+    // spinning, a longer one by spinning with exponentially growing pauses between checks,
+    // and a holder that got descheduled by parking, so waiters stop burning its core.
+    // a waiter queues itself before its last check and unlockNode() bumps the version
+    // before draining the queue, so one of the two always sees the other
+    private int awaitUnlocked(long deadline) {
+        long iterations = 0;
+        try {
+            for (int i = 0; i < SPIN_LIMIT; i++) {
+                Thread.onSpinWait();
+                iterations++;
+                int currentVersion = version.get();
+                if ((currentVersion & NODE_LOCKED) == 0) {
+                    return currentVersion;
+                }
+            }
+            for (int round = 0; round < BACKOFF_ROUNDS; round++) {
+                for (int i = 0; i < 1 << round; i++) {
+                    Thread.onSpinWait();
+                }
+                iterations++;
+                int currentVersion = version.get();
+                if ((currentVersion & NODE_LOCKED) == 0) {
+                    return currentVersion;
+                }
+                if (deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0) {
+                    return TIMED_OUT;
+                }
+            }
+
+            ConcurrentLinkedQueue<Thread> queue = waiters();
+            Thread current = Thread.currentThread();
+            while (true) {
+                queue.add(current);
+                int currentVersion = version.get();
+                if ((currentVersion & NODE_LOCKED) == 0) {
+                    queue.remove(current);
+                    return currentVersion;
+                }
+                long parkNanos = MAX_PARK_NANOS;
+                if (deadline != NO_DEADLINE) {
+                    parkNanos = Math.min(parkNanos, deadline - System.nanoTime());
+                    if (parkNanos <= 0) {
+                        queue.remove(current);
+                        return TIMED_OUT;
+                    }
+                }
+                LockSupport.parkNanos(this, parkNanos);
+                iterations++;
+                queue.remove(current);
+            }
+        } finally {
+            TreeMetrics.count(TreeMetrics.SPIN_ITERATIONS, iterations);
+        }
+    }
+
+    // most nodes are never waited on, the queue is only allocated for those that are
+    private ConcurrentLinkedQueue<Thread> waiters() {
+        ConcurrentLinkedQueue<Thread> queue = waiters;
+        if (queue == null) {
+            synchronized (this) {
+                if (waiters == null) {
+                    waiters = new ConcurrentLinkedQueue<>();
+                }
+                queue = waiters;
+            }
+        }
+        return queue;
+    }
+
+    public boolean validate(int expectedVersion) {
+        // keep the reads of keys/children from being reordered past the version check
+        VarHandle.acquireFence();
+        return version.get() == expectedVersion;
+    }
 
-        return currentVersion;
+    public boolean upgradeLock(int expectedVersion) {
+        return version.compareAndSet(expectedVersion, expectedVersion | NODE_LOCKED);
     }
 }
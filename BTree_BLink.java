@@ -0,0 +1,314 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Lehman-Yao B-link variant of BTree.java, build it with BTreeNode_Reentrant.java in its place.
+// a node never blocks a reader behind a split: a reader holds one node at a time and
+// moves along the right link when its key is at or past the node's high key
+class BTree<K extends Comparable<K>, V> {
+    private static final int MAX_PENDING_BUFFERS = 64; // buffers in flight before inserts wait
+    private volatile BTreeNode<K, V> root;
+    private int bufferSize;
+    private HashPartition<K, V> partition;
+    private BufferFlusher<K, V> flusher;
+
+    private final Lock rootLock = new ReentrantLock();
+    private final Lock flushLock = new ReentrantLock();
+
+    // every node with a non-empty buffer is in here, added and removed while the node is locked
+    private final Set<BTreeNode<K, V>> dirtyNodes = ConcurrentHashMap.newKeySet();
+
+    public BTree(int bufferSize, int numPartitions, String storagePath) {
+        this.root = new BTreeNode<>(true);
+        this.bufferSize = bufferSize;
+        this.partition = new HashPartition<>(numPartitions, storagePath);
+        this.flusher = new BufferFlusher<>(partition, Runtime.getRuntime().availableProcessors(),
+                MAX_PENDING_BUFFERS);
+    }
+
+    public void insert(K key, V value) {
+        long start = TreeMetrics.start();
+        Deque<BTreeNode<K, V>> stack = new ArrayDeque<>();
+        BTreeNode<K, V> node = findLeafNode(key, stack);
+        node.lockWrite();
+        node = moveRight(node, key, true);
+
+        boolean flush = insertIntoNode(node, key, value);
+        if (node.getKeys().size() <= bufferSize) {
+            node.unlockWrite();
+        } else {
+            // half-split: the new right node is reachable through the right link as soon
+            // as the latch is dropped, the separator reaches the parent afterwards
+            BTreeNode<K, V> rightNode = splitNode(node);
+            K separator = node.getHighKey();
+            node.unlockWrite();
+            insertIntoParent(stack, node, separator, rightNode);
+        }
+
+        if (flush) {
+            flusher.awaitCapacity();
+        }
+        TreeMetrics.record(TreeMetrics.INSERT, start);
+    }
+
+    // descends without latch coupling, the stack keeps the inner node used at each level
+    private BTreeNode<K, V> findLeafNode(K key, Deque<BTreeNode<K, V>> stack) {
+        BTreeNode<K, V> node = root;
+        while (true) {
+            node.lockRead();
+            node = moveRight(node, key, false);
+            if (node.isLeafNode()) {
+                node.unlockRead();
+                return node;
+            }
+            BTreeNode<K, V> child = node.getChildren().get(childIndex(node, key));
+            node.unlockRead();
+            if (stack != null) {
+                stack.push(node);
+            }
+            node = child;
+        }
+    }
+
+    // node is latched on entry, the returned node is latched in the same mode
+    private BTreeNode<K, V> moveRight(BTreeNode<K, V> node, K key, boolean write) {
+        while (node.getHighKey() != null && key.compareTo(node.getHighKey()) >= 0) {
+            BTreeNode<K, V> next = node.getRightLink();
+            if (write) {
+                next.lockWrite();
+                node.unlockWrite();
+            } else {
+                next.lockRead();
+                node.unlockRead();
+            }
+            node = next;
+        }
+        return node;
+    }
+
+    private int childIndex(BTreeNode<K, V> node, K key) {
+        return KeySearch.upperBound(node.getKeys(), key);
+    }
+
+    // node is a leaf, a key that is already there gets the new value. a full buffer is swapped
+    // for an empty one and handed to the flusher while node is still locked. returns whether
+    // that happened, the caller waits for flush capacity once its latches are released
+    private boolean insertIntoNode(BTreeNode<K, V> node, K key, V value) {
+        int index = KeySearch.lowerBound(node.getKeys(), key);
+        if (index < node.getKeys().size() && key.compareTo(node.getKeys().get(index)) == 0) {
+            node.getValues().set(index, value);
+        } else {
+            node.getKeys().add(index, key);
+            node.getValues().add(index, value);
+        }
+        node.getBuffer().put(key, value);
+
+        if (node.getBuffer().size() <= bufferSize) {
+            dirtyNodes.add(node);
+            return false;
+        }
+        flusher.submit(node.getBuffer());
+        node.setBuffer(new HashMap<>());
+        dirtyNodes.remove(node);
+        return true;
+    }
+
+    // moves the upper half of a write-latched node into a new right sibling.
+    // the separator becomes the node's high key; leaves copy it up, inner nodes push it up
+    private BTreeNode<K, V> splitNode(BTreeNode<K, V> node) {
+        TreeMetrics.count(TreeMetrics.SPLITS);
+        int size = node.getKeys().size();
+        int midIndex = size / 2;
+        K midKey = node.getKeys().get(midIndex);
+
+        BTreeNode<K, V> rightNode = new BTreeNode<>(node.isLeafNode());
+        if (node.isLeafNode()) {
+            rightNode.getKeys().addAll(node.getKeys().subList(midIndex, size));
+            rightNode.getValues().addAll(node.getValues().subList(midIndex, size));
+            for (K key : rightNode.getKeys()) {
+                V value = node.getBuffer().remove(key);
+                if (value != null) {
+                    rightNode.getBuffer().put(key, value);
+                }
+            }
+            if (!rightNode.getBuffer().isEmpty()) {
+                dirtyNodes.add(rightNode);
+            }
+            node.getKeys().subList(midIndex, size).clear();
+            node.getValues().subList(midIndex, size).clear();
+        } else {
+            int childCount = node.getChildren().size();
+            rightNode.getKeys().addAll(node.getKeys().subList(midIndex + 1, size));
+            rightNode.getChildren().addAll(node.getChildren().subList(midIndex + 1, childCount));
+            node.getKeys().subList(midIndex, size).clear();
+            node.getChildren().subList(midIndex + 1, childCount).clear();
+        }
+
+        rightNode.setHighKey(node.getHighKey());
+        rightNode.setRightLink(node.getRightLink());
+        node.setHighKey(midKey);
+        node.setRightLink(rightNode);
+        return rightNode;
+    }
+
+    // second half of a split. the parent is taken from the descent stack, or looked up
+    // again from the root when the split node was the root at descent time
+    private void insertIntoParent(Deque<BTreeNode<K, V>> stack, BTreeNode<K, V> node, K separator,
+            BTreeNode<K, V> rightNode) {
+        while (true) {
+            BTreeNode<K, V> parent;
+            if (!stack.isEmpty()) {
+                parent = stack.pop();
+            } else {
+                rootLock.lock();
+                try {
+                    if (root == node) {
+                        BTreeNode<K, V> newRoot = new BTreeNode<>(false);
+                        newRoot.getKeys().add(separator);
+                        newRoot.getChildren().add(node);
+                        newRoot.getChildren().add(rightNode);
+                        root = newRoot;
+                        return;
+                    }
+                } finally {
+                    rootLock.unlock();
+                }
+                parent = findParent(node, separator);
+            }
+
+            parent.lockWrite();
+            parent = moveRight(parent, separator, true);
+            int index = childIndex(parent, separator);
+            parent.getKeys().add(index, separator);
+            parent.getChildren().add(index + 1, rightNode);
+            if (parent.getKeys().size() <= bufferSize) {
+                parent.unlockWrite();
+                return;
+            }
+
+            rightNode = splitNode(parent);
+            separator = parent.getHighKey();
+            parent.unlockWrite();
+            node = parent;
+        }
+    }
+
+    // the root grew above node since the descent, walk down to the level right above it.
+    // node may be the right half of a root whose split has not installed the new root yet,
+    // then the root is still at node's level until that thread gets the root lock
+    private BTreeNode<K, V> findParent(BTreeNode<K, V> node, K key) {
+        int height = height(node);
+        BTreeNode<K, V> current = root;
+        int currentHeight = height(current);
+        while (currentHeight <= height) {
+            Thread.yield();
+            current = root;
+            currentHeight = height(current);
+        }
+        while (currentHeight > height + 1) {
+            current.lockRead();
+            current = moveRight(current, key, false);
+            BTreeNode<K, V> child = current.getChildren().get(childIndex(current, key));
+            current.unlockRead();
+            current = child;
+            currentHeight--;
+        }
+        return current;
+    }
+
+    private int height(BTreeNode<K, V> node) {
+        int height = 0;
+        while (!node.isLeafNode()) {
+            node.lockRead();
+            BTreeNode<K, V> child = node.getChildren().get(0);
+            node.unlockRead();
+            node = child;
+            height++;
+        }
+        return height;
+    }
+
+    public V search(K key) {
+        long start = TreeMetrics.start();
+        V value = searchKey(key);
+        TreeMetrics.record(TreeMetrics.SEARCH, start);
+        return value;
+    }
+
+    private V searchKey(K key) {
+        BTreeNode<K, V> node = findLeafNode(key, null);
+        node.lockRead();
+        node = moveRight(node, key, false);
+        try {
+            int index = KeySearch.indexOf(node.getKeys(), key);
+            if (index != -1) {
+                return node.getValues().get(index);
+            } else {
+                return null;
+            }
+        } finally {
+            node.unlockRead();
+        }
+    }
+
+    public void delete(K key) {
+        long start = TreeMetrics.start();
+        deleteKey(key);
+        TreeMetrics.record(TreeMetrics.DELETE, start);
+    }
+
+    // leaves are never merged, so nodes stay in place and right links stay valid
+    private void deleteKey(K key) {
+        BTreeNode<K, V> node = findLeafNode(key, null);
+        node.lockWrite();
+        node = moveRight(node, key, true);
+        try {
+            int index = KeySearch.indexOf(node.getKeys(), key);
+            if (index != -1) {
+                node.getKeys().remove(index);
+                node.getValues().remove(index);
+                node.getBuffer().remove(key);
+            }
+        } finally {
+            node.unlockWrite();
+        }
+    }
+
+    // only visits nodes that were written since they were last flushed, one lock at a time
+    public void writeBufferToDisk() {
+        long start = TreeMetrics.start();
+        flushLock.lock();
+        try {
+            for (BTreeNode<K, V> node : dirtyNodes) {
+                node.lockWrite();
+                try {
+                    dirtyNodes.remove(node);
+                    TreeMetrics.count(TreeMetrics.FLUSHED_ENTRIES, node.getBuffer().size());
+                    flusher.submit(node.getBuffer());
+                    node.setBuffer(new HashMap<>());
+                } finally {
+                    node.unlockWrite();
+                }
+            }
+            flusher.drain();
+            partition.flush();
+        } finally {
+            flushLock.unlock();
+        }
+        TreeMetrics.record(TreeMetrics.FLUSH, start);
+    }
+
+    // flushes everything and stops the flusher, the tree must not be used afterwards
+    public void close() {
+        try {
+            writeBufferToDisk();
+        } finally {
+            flusher.close();
+            partition.close();
+        }
+    }
+}
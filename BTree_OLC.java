@@ -0,0 +1,335 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// optimistic lock coupling variant, build with BTreeNode_spin.java instead of BTreeNode_Reentrant.java
+class BTree<K extends Comparable<K>, V> {
+    private static final int MAX_PENDING_BUFFERS = 64; // buffers in flight before inserts wait
+    private static final long FLUSH_LOCK_TIMEOUT_MICROS = 100; // then the node is retried after the others
+    private volatile BTreeNode<K, V> root;
+    private int bufferSize;
+    private HashPartition<K, V> partition;
+    private BufferFlusher<K, V> flusher;
+
+    private final Lock flushLock = new ReentrantLock();
+
+    // every node with a non-empty buffer is in here, added and removed while the node is locked
+    private final Set<BTreeNode<K, V>> dirtyNodes = ConcurrentHashMap.newKeySet();
+
+    public BTree(int bufferSize, int numPartitions, String storagePath) {
+        this.root = new BTreeNode<>(true);
+        this.bufferSize = bufferSize;
+        this.partition = new HashPartition<>(numPartitions, storagePath);
+        this.flusher = new BufferFlusher<>(partition, Runtime.getRuntime().availableProcessors(),
+                MAX_PENDING_BUFFERS);
+    }
+
+    public void insert(K key, V value) {
+        long start = TreeMetrics.start();
+        boolean flush;
+        List<BTreeNode<K, V>> path = new ArrayList<>();
+        List<Integer> versions = new ArrayList<>();
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            path.clear();
+            versions.clear();
+            try {
+                if (!findLeafNode(key, path, versions)) {
+                    continue;
+                }
+                int leafDepth = path.size() - 1;
+                BTreeNode<K, V> leaf = path.get(leafDepth);
+
+                // only the nodes a split will change get upgraded: the leaf, and every
+                // full ancestor up to the first one with room for a separator
+                int top = leafDepth;
+                while (top >= 0 && path.get(top).getKeys().size() >= bufferSize) {
+                    top--;
+                }
+                top = Math.max(top, 0);
+
+                if (!upgradePath(path, versions, top)) {
+                    continue;
+                }
+                try {
+                    flush = insertIntoNode(leaf, key, value);
+                    if (leaf.getKeys().size() > bufferSize) {
+                        splitNode(path, leafDepth);
+                    }
+                } finally {
+                    for (int i = top; i <= leafDepth; i++) {
+                        path.get(i).unlockNode();
+                    }
+                }
+                break;
+            } catch (IndexOutOfBoundsException | NullPointerException e) {
+                // torn read of a node that was being modified, restart from the root
+            }
+        }
+
+        TreeMetrics.count(TreeMetrics.RESTARTS, attempts - 1);
+
+        if (flush) {
+            flusher.awaitCapacity();
+        }
+        TreeMetrics.record(TreeMetrics.INSERT, start);
+    }
+
+    // optimistic descent, no node is written. fills path/versions from the root to the leaf,
+    // returns false if a node changed underneath and the caller has to restart
+    private boolean findLeafNode(K key, List<BTreeNode<K, V>> path, List<Integer> versions) {
+        BTreeNode<K, V> node = root;
+        int version = node.stableVersion();
+        if (node != root) {
+            return false;
+        }
+        path.add(node);
+        versions.add(version);
+
+        while (!node.isLeafNode()) {
+            BTreeNode<K, V> child = node.getChildren().get(childIndex(node, key));
+            int childVersion = child.stableVersion();
+            if (!node.validate(version)) {
+                return false;
+            }
+            node = child;
+            version = childVersion;
+            path.add(node);
+            versions.add(version);
+        }
+        return true;
+    }
+
+    private boolean upgradePath(List<BTreeNode<K, V>> path, List<Integer> versions, int top) {
+        for (int i = top; i < path.size(); i++) {
+            if (!path.get(i).upgradeLock(versions.get(i))) {
+                for (int j = top; j < i; j++) {
+                    path.get(j).unlockNode();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int childIndex(BTreeNode<K, V> node, K key) {
+        return KeySearch.upperBound(node.getKeys(), key);
+    }
+
+    // node is a leaf, a key that is already there gets the new value. a full buffer is swapped
+    // for an empty one and handed to the flusher while node is still locked. returns whether
+    // that happened, the caller waits for flush capacity once its nodes are unlocked
+    private boolean insertIntoNode(BTreeNode<K, V> node, K key, V value) {
+        int index = KeySearch.lowerBound(node.getKeys(), key);
+        if (index < node.getKeys().size() && key.compareTo(node.getKeys().get(index)) == 0) {
+            node.getValues().set(index, value);
+        } else {
+            node.getKeys().add(index, key);
+            node.getValues().add(index, value);
+        }
+        node.getBuffer().put(key, value);
+
+        if (node.getBuffer().size() <= bufferSize) {
+            dirtyNodes.add(node);
+            return false;
+        }
+        flusher.submit(node.getBuffer());
+        node.setBuffer(new HashMap<>());
+        dirtyNodes.remove(node);
+        return true;
+    }
+
+    // node keeps the left half so readers holding it only see a version change.
+    // leaves copy the separator up, inner nodes push it up
+    private void splitNode(List<BTreeNode<K, V>> path, int depth) {
+        TreeMetrics.count(TreeMetrics.SPLITS);
+        BTreeNode<K, V> node = path.get(depth);
+        int size = node.getKeys().size();
+        int midIndex = size / 2;
+        K midKey = node.getKeys().get(midIndex);
+
+        BTreeNode<K, V> rightNode = new BTreeNode<>(node.isLeafNode());
+        if (node.isLeafNode()) {
+            rightNode.getKeys().addAll(node.getKeys().subList(midIndex, size));
+            rightNode.getValues().addAll(node.getValues().subList(midIndex, size));
+            for (K key : rightNode.getKeys()) {
+                V value = node.getBuffer().remove(key);
+                if (value != null) {
+                    rightNode.getBuffer().put(key, value);
+                }
+            }
+            if (!rightNode.getBuffer().isEmpty()) {
+                dirtyNodes.add(rightNode);
+            }
+            node.getKeys().subList(midIndex, size).clear();
+            node.getValues().subList(midIndex, size).clear();
+        } else {
+            int childCount = node.getChildren().size();
+            rightNode.getKeys().addAll(node.getKeys().subList(midIndex + 1, size));
+            rightNode.getChildren().addAll(node.getChildren().subList(midIndex + 1, childCount));
+            for (BTreeNode<K, V> child : rightNode.getChildren()) {
+                child.setParent(rightNode);
+            }
+            node.getKeys().subList(midIndex, size).clear();
+            node.getChildren().subList(midIndex + 1, childCount).clear();
+        }
+
+        if (depth == 0) {
+            BTreeNode<K, V> newRoot = new BTreeNode<>(false);
+            newRoot.getKeys().add(midKey);
+            newRoot.getChildren().add(node);
+            newRoot.getChildren().add(rightNode);
+            node.setParent(newRoot);
+            rightNode.setParent(newRoot);
+            root = newRoot;
+        } else {
+            BTreeNode<K, V> parent = path.get(depth - 1);
+            int index = parent.getChildren().indexOf(node);
+            parent.getKeys().add(index, midKey);
+            parent.getChildren().add(index + 1, rightNode);
+            rightNode.setParent(parent);
+            if (parent.getKeys().size() > bufferSize) {
+                splitNode(path, depth - 1);
+            }
+        }
+    }
+
+    public V search(K key) {
+        long start = TreeMetrics.start();
+        V value = searchKey(key);
+        TreeMetrics.record(TreeMetrics.SEARCH, start);
+        return value;
+    }
+
+    private V searchKey(K key) {
+        int attempts = 0;
+        restart:
+        while (true) {
+            attempts++;
+            try {
+                BTreeNode<K, V> node = root;
+                int version = node.stableVersion();
+                if (node != root) {
+                    continue;
+                }
+
+                while (!node.isLeafNode()) {
+                    BTreeNode<K, V> child = node.getChildren().get(childIndex(node, key));
+                    int childVersion = child.stableVersion();
+                    if (!node.validate(version)) {
+                        continue restart;
+                    }
+                    node = child;
+                    version = childVersion;
+                }
+
+                int index = KeySearch.indexOf(node.getKeys(), key);
+                V value = index != -1 ? node.getValues().get(index) : null;
+                if (node.validate(version)) {
+                    TreeMetrics.count(TreeMetrics.RESTARTS, attempts - 1);
+                    return value;
+                }
+            } catch (IndexOutOfBoundsException | NullPointerException e) {
+                // torn read of a node that was being modified, restart from the root
+            }
+        }
+    }
+
+    // only the leaf is upgraded. underfull leaves are left in place instead of merged,
+    // so a delete never has to lock its ancestors
+    public void delete(K key) {
+        long start = TreeMetrics.start();
+        deleteKey(key);
+        TreeMetrics.record(TreeMetrics.DELETE, start);
+    }
+
+    private void deleteKey(K key) {
+        List<BTreeNode<K, V>> path = new ArrayList<>();
+        List<Integer> versions = new ArrayList<>();
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            path.clear();
+            versions.clear();
+            try {
+                if (!findLeafNode(key, path, versions)) {
+                    continue;
+                }
+                int leafDepth = path.size() - 1;
+                BTreeNode<K, V> leaf = path.get(leafDepth);
+                if (!leaf.upgradeLock(versions.get(leafDepth))) {
+                    continue;
+                }
+                try {
+                    int index = KeySearch.indexOf(leaf.getKeys(), key);
+                    if (index != -1) {
+                        leaf.getKeys().remove(index);
+                        leaf.getValues().remove(index);
+                        leaf.getBuffer().remove(key);
+                    }
+                } finally {
+                    leaf.unlockNode();
+                }
+                TreeMetrics.count(TreeMetrics.RESTARTS, attempts - 1);
+                return;
+            } catch (IndexOutOfBoundsException | NullPointerException e) {
+                // torn read of a node that was being modified, restart from the root
+            }
+        }
+    }
+
+    // only visits nodes that were written since they were last flushed, one lock at a time.
+    // a node that stays locked for long is skipped and picked up after the others, so one
+    // hot node doesn't hold up the whole flush
+    public void writeBufferToDisk() {
+        long start = TreeMetrics.start();
+        flushLock.lock();
+        try {
+            List<BTreeNode<K, V>> busy = new ArrayList<>();
+            for (BTreeNode<K, V> node : dirtyNodes) {
+                if (node.tryLockNode(FLUSH_LOCK_TIMEOUT_MICROS, TimeUnit.MICROSECONDS)) {
+                    flushNode(node);
+                } else {
+                    busy.add(node);
+                }
+            }
+            for (BTreeNode<K, V> node : busy) {
+                node.lockNode();
+                flushNode(node);
+            }
+            flusher.drain();
+            partition.flush();
+        } finally {
+            flushLock.unlock();
+        }
+        TreeMetrics.record(TreeMetrics.FLUSH, start);
+    }
+
+    // caller holds the node's lock, released here
+    private void flushNode(BTreeNode<K, V> node) {
+        try {
+            dirtyNodes.remove(node);
+            TreeMetrics.count(TreeMetrics.FLUSHED_ENTRIES, node.getBuffer().size());
+            flusher.submit(node.getBuffer());
+            node.setBuffer(new HashMap<>());
+        } finally {
+            node.unlockNode();
+        }
+    }
+
+    // flushes everything and stops the flusher, the tree must not be used afterwards
+    public void close() {
+        try {
+            writeBufferToDisk();
+        } finally {
+            flusher.close();
+            partition.close();
+        }
+    }
+}
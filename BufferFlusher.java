@@ -0,0 +1,149 @@
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// writes swapped-out node buffers to a HashPartition in the background. every partition is
+// served by one worker thread, so buffers that touch the same key reach the log in the order
+// they were submitted, while different partitions are written in parallel. submit() never
+// blocks, callers wait in awaitCapacity() once they hold no latches. the first failed write
+// is kept and thrown from every later awaitCapacity() and drain(), the entries it lost are
+// not on disk
+class BufferFlusher<K, V> implements Closeable {
+    private final HashPartition<K, V> partition;
+    private final ExecutorService[] workers;
+    private final int maxPendingBuffers;
+    private int pendingBuffers; // submitted but not fully written, guarded by lock
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition capacity = lock.newCondition();
+
+    public BufferFlusher(HashPartition<K, V> partition, int threads, int maxPendingBuffers) {
+        this.partition = partition;
+        this.maxPendingBuffers = maxPendingBuffers;
+        this.workers = new ExecutorService[Math.max(1, Math.min(threads, partition.getNumPartitions()))];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "buffer-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // buffer must no longer be reachable from the tree. call it while still holding the latch
+    // the buffer was swapped out under, that keeps submissions in the order of the swaps
+    public void submit(Map<K, V> buffer) {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        List<List<Map.Entry<K, V>>> batches = new ArrayList<>();
+        for (int i = 0; i < workers.length; i++) {
+            batches.add(new ArrayList<>());
+        }
+        for (Map.Entry<K, V> entry : buffer.entrySet()) {
+            batches.get(partition.getPartitionIndex(entry.getKey()) % workers.length).add(entry);
+        }
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < workers.length; i++) {
+            List<Map.Entry<K, V>> batch = batches.get(i);
+            if (!batch.isEmpty()) {
+                writes.add(CompletableFuture.runAsync(() -> partition.insertAll(batch), workers[i])
+                        .whenComplete((result, e) -> {
+                            if (e != null) {
+                                failure.compareAndSet(null, e instanceof CompletionException ? e.getCause() : e);
+                            }
+                        }));
+            }
+        }
+
+        lock.lock();
+        try {
+            pendingBuffers++;
+        } finally {
+            lock.unlock();
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).whenComplete((result, e) -> {
+            lock.lock();
+            try {
+                pendingBuffers--;
+                capacity.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    // backpressure: blocks while more than maxPendingBuffers buffers are being written
+    public void awaitCapacity() {
+        lock.lock();
+        try {
+            while (pendingBuffers > maxPendingBuffers) {
+                capacity.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        checkFailure();
+    }
+
+    // waits for every buffer submitted before the call
+    public void drain() {
+        awaitWorkers();
+        checkFailure();
+    }
+
+    private void awaitWorkers() {
+        List<CompletableFuture<Void>> barriers = new ArrayList<>();
+        for (ExecutorService worker : workers) {
+            barriers.add(CompletableFuture.runAsync(() -> { }, worker));
+        }
+        CompletableFuture.allOf(barriers.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void checkFailure() {
+        Throwable e = failure.get();
+        if (e instanceof UncheckedIOException) {
+            throw new UncheckedIOException("buffer flush failed", ((UncheckedIOException) e).getCause());
+        }
+        if (e != null) {
+            throw new IllegalStateException("buffer flush failed", e);
+        }
+    }
+
+    public int getPendingBuffers() {
+        lock.lock();
+        try {
+            return pendingBuffers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a failed write is not thrown here, drain() already reported it to whoever flushed
+    @Override
+    public void close() {
+        awaitWorkers();
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+        for (ExecutorService worker : workers) {
+            try {
+                worker.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
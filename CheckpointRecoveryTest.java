@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// checkpoints running against optimistic writers, which latch only their leaf. the tree is
+// abandoned without close, as after a crash, and every committed write has to come back
+// from the last checkpoint and the log behind it. the first part stops a writer between
+// logging its record and finishing the leaf and checkpoints right there, the second lets
+// writers and a checkpointing thread race. needs BTree.java BTreeNode_Reentrant.java and the
+// shared sources, run with java CheckpointRecoveryTest
+class CheckpointRecoveryTest {
+    private static final int KEYS = 40_000;
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 3;
+    private static final int STRIDE = 7919; // prime, coprime to KEYS / THREADS
+
+    public static void main(String[] args) throws Exception {
+        checkpointInsideWrite(false);
+        checkpointInsideWrite(true);
+        for (int round = 0; round < ROUNDS; round++) {
+            concurrentCheckpoints(round);
+        }
+        System.out.println("ok");
+        System.exit(0);
+    }
+
+    private static void checkpointInsideWrite(boolean delete) throws Exception {
+        Path directory = Files.createTempDirectory("checkpoint-test");
+        BTree<Key, Integer> tree = open(directory);
+        tree.bulkLoad(entries(), 0.5);
+
+        // hashing the key happens after the record is logged, while the writer has the leaf latched
+        Key target = new Key(KEYS / 2);
+        Key.trap(target);
+        Thread writer = new Thread(() -> {
+            if (delete) {
+                tree.delete(target);
+            } else {
+                tree.insert(target, -1);
+            }
+        }, Key.WRITER);
+        writer.start();
+        if (!Key.trapped.await(1, TimeUnit.MINUTES)) {
+            fail("writer never reached the leaf");
+        }
+        Thread checkpointer = new Thread(tree::checkpoint, "checkpointer");
+        checkpointer.start();
+        // waits for the leaf latch until the write is done, or truncated the log without it
+        checkpointer.join(500);
+        Key.release.countDown();
+        writer.join();
+        checkpointer.join();
+
+        BTree<Key, Integer> recovered = open(directory);
+        Integer value = recovered.search(target);
+        if (delete ? value != null : value == null || value != -1) {
+            fail((delete ? "delete" : "insert") + " committed during a checkpoint was lost, found " + value);
+        }
+        recovered.close();
+        deleteDirectory(directory);
+    }
+
+    private static void concurrentCheckpoints(int round) throws Exception {
+        Path directory = Files.createTempDirectory("checkpoint-test");
+        BTree<Key, Integer> tree = open(directory);
+        tree.bulkLoad(entries(), 0.5);
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread checkpointer = new Thread(() -> {
+            while (writing.get()) {
+                tree.checkpoint();
+            }
+        }, "checkpointer");
+        checkpointer.start();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int id = t;
+            Thread writer = new Thread(() -> {
+                // thread t owns the keys congruent to t, visited in a scattered order so most
+                // writes land on leaves no checkpoint has pending yet
+                for (int i = 0; i < KEYS / THREADS; i++) {
+                    int key = (int) ((long) i * STRIDE % (KEYS / THREADS)) * THREADS + id;
+                    if (key % 4 == 2) {
+                        tree.delete(new Key(key));
+                    } else {
+                        tree.insert(new Key(key), key);
+                    }
+                }
+            }, "writer-" + t);
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        checkpointer.join();
+
+        BTree<Key, Integer> recovered = open(directory);
+        int lost = 0;
+        for (int key = 0; key < KEYS; key++) {
+            Integer value = recovered.search(new Key(key));
+            if (key % 4 == 2 ? value != null : value == null || value != key) {
+                lost++;
+            }
+        }
+        if (lost > 0) {
+            fail("round " + round + ": " + lost + " committed writes not recovered");
+        }
+        recovered.close();
+        deleteDirectory(directory);
+    }
+
+    private static BTree<Key, Integer> open(Path directory) {
+        // a large buffer keeps the writers on the optimistic path
+        return new BTree<>(64, 4, directory.toString(), WriteAheadLog.SyncPolicy.GROUP);
+    }
+
+    private static Iterator<Map.Entry<Key, Integer>> entries() {
+        return IntStream.range(0, KEYS).mapToObj(key -> Map.entry(new Key(key), 0)).iterator();
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAILED: " + message);
+        System.exit(1);
+    }
+
+    // an int key whose hashCode, once armed, stops the writer thread the first time it hashes
+    // the armed key, until the test lets it go
+    private static final class Key implements Comparable<Key>, Serializable {
+        private static final long serialVersionUID = 1L;
+        static final String WRITER = "trapped-writer";
+        static volatile Key armed;
+        static volatile CountDownLatch trapped;
+        static volatile CountDownLatch release;
+
+        private final int value;
+
+        Key(int value) {
+            this.value = value;
+        }
+
+        static void trap(Key key) {
+            trapped = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+            armed = key;
+        }
+
+        @Override
+        public int hashCode() {
+            Key key = armed;
+            if (key != null && key.value == value && Thread.currentThread().getName().equals(WRITER)) {
+                armed = null;
+                trapped.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return Integer.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).value == value;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            return Integer.compare(value, other.value);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// on-disk image of a tree, one page per node. pages are appended to pages_<generation>.dat,
+// and a checkpoint only appends the pages that changed since the previous one. the manifest
+// maps every live page id to the offset of its newest copy and is replaced atomically, so a
+// crash during a checkpoint leaves the previous one intact. once most of the file is stale
+// copies the live pages are copied into the next generation
+class CheckpointStore<K, V> {
+    public static final long NO_PAGE = -1;
+
+    private static final String MANIFEST = "manifest";
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+    // decoded form of one node, children are referenced by page id
+    public static final class Page<K, V> {
+        private final long pageId;
+        private final boolean leaf;
+        private final List<K> keys;
+        private final List<V> values;
+        private final long[] children;
+        private final Map<K, V> buffer;
+
+        public Page(long pageId, boolean leaf, List<K> keys, List<V> values, long[] children, Map<K, V> buffer) {
+            this.pageId = pageId;
+            this.leaf = leaf;
+            this.keys = keys;
+            this.values = values;
+            this.children = children;
+            this.buffer = buffer;
+        }
+
+        public long getPageId() {
+            return pageId;
+        }
+
+        public boolean isLeaf() {
+            return leaf;
+        }
+
+        public List<K> getKeys() {
+            return keys;
+        }
+
+        public List<V> getValues() {
+            return values;
+        }
+
+        public long[] getChildren() {
+            return children;
+        }
+
+        public Map<K, V> getBuffer() {
+            return buffer;
+        }
+    }
+
+    private final Path directory;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final Map<Long, Long> pageTable; // page id -> offset of its newest copy
+    private int generation;
+    private long rootPageId;
+    private long nextPageId;
+    private long fileLength;
+    private long liveBytes;
+
+    public CheckpointStore(Path directory, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.pageTable = new HashMap<>();
+        this.rootPageId = NO_PAGE;
+
+        Files.createDirectories(directory);
+        Path manifest = directory.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(manifest)))) {
+                generation = in.readInt();
+                rootPageId = in.readLong();
+                nextPageId = in.readLong();
+                fileLength = in.readLong();
+                liveBytes = in.readLong();
+                int pages = in.readInt();
+                for (int i = 0; i < pages; i++) {
+                    pageTable.put(in.readLong(), in.readLong());
+                }
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return pageTable.isEmpty();
+    }
+
+    public long allocatePageId() {
+        return nextPageId++;
+    }
+
+    public long getRootPageId() {
+        return rootPageId;
+    }
+
+    // appends the changed pages, drops the freed ones and publishes the result. if any of it
+    // fails the store goes back to the last published checkpoint
+    public void write(Collection<Page<K, V>> changed, Collection<Long> freed, long rootPageId) throws IOException {
+        Map<Long, Long> publishedTable = new HashMap<>(pageTable);
+        int publishedGeneration = generation;
+        long publishedRoot = this.rootPageId;
+        long publishedLength = fileLength;
+        long publishedLive = liveBytes;
+        try {
+            Path pagesFile = pagesFile(generation);
+            try (FileChannel channel = FileChannel.open(pagesFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                // bytes past fileLength belong to a checkpoint that never reached the manifest
+                channel.truncate(fileLength);
+                channel.position(fileLength);
+                for (Page<K, V> page : changed) {
+                    byte[] bytes = encode(page);
+                    Long previous = pageTable.put(page.getPageId(), fileLength);
+                    if (previous != null) {
+                        liveBytes -= recordLength(channel, previous);
+                    }
+                    writeRecord(channel, bytes);
+                    fileLength += 4 + bytes.length;
+                    liveBytes += 4 + bytes.length;
+                }
+                for (Long pageId : freed) {
+                    Long previous = pageTable.remove(pageId);
+                    if (previous != null) {
+                        liveBytes -= recordLength(channel, previous);
+                    }
+                }
+                channel.force(false);
+            }
+            this.rootPageId = rootPageId;
+
+            if (fileLength > COMPACT_MIN_BYTES && fileLength > 2 * liveBytes) {
+                compact();
+            }
+            writeManifest();
+        } catch (IOException | RuntimeException e) {
+            pageTable.clear();
+            pageTable.putAll(publishedTable);
+            generation = publishedGeneration;
+            this.rootPageId = publishedRoot;
+            fileLength = publishedLength;
+            liveBytes = publishedLive;
+            throw e;
+        }
+        if (generation > publishedGeneration) {
+            Files.deleteIfExists(pagesFile(publishedGeneration));
+        }
+    }
+
+    // every live page by id, in file order
+    public Map<Long, Page<K, V>> readAll() throws IOException {
+        Map<Long, Page<K, V>> pages = new LinkedHashMap<>();
+        if (pageTable.isEmpty()) {
+            return pages;
+        }
+        try (FileChannel channel = FileChannel.open(pagesFile(generation), StandardOpenOption.READ)) {
+            for (Long offset : pageTable.values()) {
+                Page<K, V> page = decode(readRecord(channel, offset));
+                pages.put(page.getPageId(), page);
+            }
+        }
+        return pages;
+    }
+
+    // copies the newest copy of every live page into the next generation's file
+    private void compact() throws IOException {
+        Path source = pagesFile(generation);
+        Path target = pagesFile(generation + 1);
+        long length = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<Long, Long> entry : pageTable.entrySet()) {
+                byte[] bytes = readRecord(in, entry.getValue());
+                writeRecord(out, bytes);
+                entry.setValue(length);
+                length += 4 + bytes.length;
+            }
+            out.force(false);
+        }
+        generation++;
+        fileLength = length;
+        liveBytes = length;
+    }
+
+    private void writeManifest() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(generation);
+            out.writeLong(rootPageId);
+            out.writeLong(nextPageId);
+            out.writeLong(fileLength);
+            out.writeLong(liveBytes);
+            out.writeInt(pageTable.size());
+            for (Map.Entry<Long, Long> entry : pageTable.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        Path temp = directory.resolve(MANIFEST + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path pagesFile(int generation) {
+        return directory.resolve("pages_" + generation + ".dat");
+    }
+
+    private byte[] encode(Page<K, V> page) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(page.getPageId());
+            out.writeBoolean(page.isLeaf());
+            out.writeInt(page.getKeys().size());
+            for (K key : page.getKeys()) {
+                writeBytes(out, keyCodec.encode(key));
+            }
+            // inner pages have no values
+            out.writeInt(page.getValues().size());
+            for (V value : page.getValues()) {
+                writeBytes(out, valueCodec.encode(value));
+            }
+            out.writeInt(page.getChildren().length);
+            for (long child : page.getChildren()) {
+                out.writeLong(child);
+            }
+            out.writeInt(page.getBuffer().size());
+            for (Map.Entry<K, V> entry : page.getBuffer().entrySet()) {
+                writeBytes(out, keyCodec.encode(entry.getKey()));
+                writeBytes(out, valueCodec.encode(entry.getValue()));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private Page<K, V> decode(byte[] bytes) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            long pageId = in.readLong();
+            boolean leaf = in.readBoolean();
+            int keyCount = in.readInt();
+            List<K> keys = new ArrayList<>(keyCount);
+            for (int i = 0; i < keyCount; i++) {
+                keys.add(keyCodec.decode(readBytes(in)));
+            }
+            int valueCount = in.readInt();
+            List<V> values = new ArrayList<>(valueCount);
+            for (int i = 0; i < valueCount; i++) {
+                values.add(valueCodec.decode(readBytes(in)));
+            }
+            long[] children = new long[in.readInt()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = in.readLong();
+            }
+            int bufferSize = in.readInt();
+            Map<K, V> buffer = new HashMap<>();
+            for (int i = 0; i < bufferSize; i++) {
+                buffer.put(keyCodec.decode(readBytes(in)), valueCodec.decode(readBytes(in)));
+            }
+            return new Page<>(pageId, leaf, keys, values, children, buffer);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // a record is its length (int) followed by the encoded page
+    private static void writeRecord(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+        buffer.putInt(bytes.length).put(bytes).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] readRecord(FileChannel channel, long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, offset);
+        ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+        readFully(channel, bytes, offset + 4);
+        return bytes.array();
+    }
+
+    private static long recordLength(FileChannel channel, long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, offset);
+        return 4 + length.getInt(0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("page record past the end of the file");
+            }
+        }
+    }
+}
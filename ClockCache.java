@@ -0,0 +1,87 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// CLOCK: entries sit in a ring of slots with a referenced bit. a hit only sets the bit, and
+// eviction sweeps the hand forward, clearing bits, until it finds an entry nobody touched
+// since the last sweep
+class ClockCache<K, V> implements PartitionCache<K, V> {
+    private final int capacity;
+    private final Map<K, Integer> slots;
+    private final K[] keys;
+    private final V[] values;
+    private final boolean[] referenced;
+    private int size;
+    private int hand;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    @SuppressWarnings("unchecked")
+    public ClockCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.slots = new HashMap<>();
+        this.keys = (K[]) new Object[capacity];
+        this.values = (V[]) new Object[capacity];
+        this.referenced = new boolean[capacity];
+    }
+
+    @Override
+    public V get(K key) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        referenced[slot] = true;
+        return values[slot];
+    }
+
+    @Override
+    public void put(K key, V value) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            slot = size < capacity ? size++ : evict();
+            keys[slot] = key;
+            slots.put(key, slot);
+        }
+        values[slot] = value;
+        referenced[slot] = true;
+    }
+
+    // frees the slot under the hand once its referenced bit is clear
+    private int evict() {
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % capacity;
+        }
+        int slot = hand;
+        slots.remove(keys[slot]);
+        evictions++;
+        hand = (hand + 1) % capacity;
+        return slot;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long getHits() {
+        return hits;
+    }
+
+    @Override
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+}
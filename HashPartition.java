@@ -1,92 +1,213 @@
-import java.io.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 // 哈希分区
+// every partition has its own lock, its own cache and its own log, so operations on different
+// partitions never wait for each other. the lock orders a partition's writes and is held only
+// around cache updates and appends, cold reads go to the log without it
 class HashPartition<K, V> {
+    private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_CACHE_ENTRIES = 100_000; // across all partitions
+
     private int numPartitions;
-    private List<Map<K, V>> partitions;
+    private List<PartitionCache<K, V>> partitions; // 有界缓存，其余在磁盘上
     private String storagePath; // 存储路径
+    private List<SegmentLog> logs; // 每个分区一个追加日志
+    private Codec<K> keyCodec;
+    private Codec<V> valueCodec;
+    private List<ReentrantLock> locks; // 每个分区一把锁
+    private long[] versions; // bumped by every insert into the partition, guarded by its lock
 
     public HashPartition(int numPartitions, String storagePath) {
+        this(numPartitions, storagePath, Codec.serializable(), Codec.serializable(), DEFAULT_SEGMENT_SIZE,
+                SegmentLog.FsyncPolicy.NONE, SegmentLog.ReadMode.CHANNEL,
+                () -> PartitionCache.clock(Math.max(1, DEFAULT_CACHE_ENTRIES / numPartitions)));
+    }
+
+    // cacheFactory is called once per partition
+    public HashPartition(int numPartitions, String storagePath, Codec<K> keyCodec, Codec<V> valueCodec,
+            long segmentSize, SegmentLog.FsyncPolicy fsyncPolicy, SegmentLog.ReadMode readMode,
+            Supplier<PartitionCache<K, V>> cacheFactory) {
         this.numPartitions = numPartitions;
         this.storagePath = storagePath;
         this.partitions = new ArrayList<>();
+        this.logs = new ArrayList<>();
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.locks = new ArrayList<>();
+        this.versions = new long[numPartitions];
 
+        Path directory = Paths.get(storagePath);
         for (int i = 0; i < numPartitions; i++) {
-            partitions.add(new HashMap<>());
+            partitions.add(cacheFactory.get());
+            locks.add(new ReentrantLock());
+            try {
+                logs.add(new SegmentLog(directory, "partition_" + i, segmentSize, WRITE_BUFFER_SIZE, fsyncPolicy,
+                        readMode));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
     }
 
-    private int getPartitionIndex(K key) {
+    public int getPartitionIndex(K key) {
         return Math.abs(key.hashCode()) % numPartitions;
     }
 
+    public int getNumPartitions() {
+        return numPartitions;
+    }
+
     public void insert(K key, V value) {
         int partitionIndex = getPartitionIndex(key);
-        Map<K, V> partition = partitions.get(partitionIndex);
-        partition.put(key, value);
-        writeToDisk(partitionIndex, key, value);
+        ReentrantLock lock = locks.get(partitionIndex);
+        lock.lock();
+        try {
+            partitions.get(partitionIndex).put(key, value);
+            versions[partitionIndex]++;
+            writeToDisk(partitionIndex, key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // takes each partition's lock once for all of its entries
+    public void insertAll(Collection<Map.Entry<K, V>> entries) {
+        List<List<Map.Entry<K, V>>> batches = new ArrayList<>();
+        for (int i = 0; i < numPartitions; i++) {
+            batches.add(new ArrayList<>());
+        }
+        for (Map.Entry<K, V> entry : entries) {
+            batches.get(getPartitionIndex(entry.getKey())).add(entry);
+        }
+
+        for (int partitionIndex = 0; partitionIndex < numPartitions; partitionIndex++) {
+            List<Map.Entry<K, V>> batch = batches.get(partitionIndex);
+            if (batch.isEmpty()) {
+                continue;
+            }
+            ReentrantLock lock = locks.get(partitionIndex);
+            lock.lock();
+            try {
+                for (Map.Entry<K, V> entry : batch) {
+                    partitions.get(partitionIndex).put(entry.getKey(), entry.getValue());
+                    writeToDisk(partitionIndex, entry.getKey(), entry.getValue());
+                }
+                versions[partitionIndex]++;
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     public V get(K key) {
         int partitionIndex = getPartitionIndex(key);
-        Map<K, V> partition = partitions.get(partitionIndex);
-        V value = partition.get(key);
-        if (value == null) {
-            value = readFromDisk(partitionIndex, key);
-            if (value != null) {
-                partition.put(key, value);
+        PartitionCache<K, V> partition = partitions.get(partitionIndex);
+        ReentrantLock lock = locks.get(partitionIndex);
+        V value;
+        long version;
+        lock.lock();
+        try {
+            value = partition.get(key);
+            version = versions[partitionIndex];
+        } finally {
+            lock.unlock();
+        }
+        if (value != null) {
+            TreeMetrics.count(TreeMetrics.CACHE_HITS);
+            return value;
+        }
+        TreeMetrics.count(TreeMetrics.CACHE_MISSES);
+
+        value = readFromDisk(partitionIndex, key);
+        if (value != null) {
+            lock.lock();
+            try {
+                // an insert since the read may have put a newer value in the cache, or already evicted it
+                if (versions[partitionIndex] == version) {
+                    partition.put(key, value);
+                }
+            } finally {
+                lock.unlock();
             }
         }
         return value;
     }
 
-    private void writeToDisk(int partitionIndex, K key, V value) {
-        String partitionFilePath = storagePath + "/partition_" + partitionIndex + ".dat";
-        try (FileOutputStream fileOutputStream = new FileOutputStream(partitionFilePath, true);
-             ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream)) {
-            objectOutputStream.writeObject(new KeyValuePair<>(key, value));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    // counters are read without the partition locks, a snapshot may be slightly behind
+    public long getCacheHits() {
+        return partitions.stream().mapToLong(PartitionCache::getHits).sum();
     }
 
-    @SuppressWarnings("unchecked")
-    private V readFromDisk(int partitionIndex, K key) {
-        String partitionFilePath = storagePath + "/partition_" + partitionIndex + ".dat";
-        try (FileInputStream fileInputStream = new FileInputStream(partitionFilePath);
-             ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream)) {
-            while (true) {
-                KeyValuePair<K, V> pair = (KeyValuePair<K, V>) objectInputStream.readObject();
-                if (pair != null && pair.getKey().equals(key)) {
-                    return pair.getValue();
-                }
+    public long getCacheMisses() {
+        return partitions.stream().mapToLong(PartitionCache::getMisses).sum();
+    }
+
+    public long getCacheEvictions() {
+        return partitions.stream().mapToLong(PartitionCache::getEvictions).sum();
+    }
+
+    public int getCachedEntries() {
+        return partitions.stream().mapToInt(PartitionCache::size).sum();
+    }
+
+    // writes are grouped in each partition's write buffer until flush(). every log is
+    // flushed, the first failure is thrown afterwards
+    public void flush() {
+        IOException failure = null;
+        for (SegmentLog log : logs) {
+            try {
+                log.flush();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
             }
-        } catch (EOFException ignored) {
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
         }
-        return null;
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
     }
 
-    private static class KeyValuePair<K, V> implements Serializable {
-        private K key;
-        private V value;
-
-        public KeyValuePair(K key, V value) {
-            this.key = key;
-            this.value = value;
+    public void close() {
+        IOException failure = null;
+        for (SegmentLog log : logs) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
         }
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
 
-        public K getKey() {
-            return key;
+    private void writeToDisk(int partitionIndex, K key, V value) {
+        try {
+            byte[] encodedKey = keyCodec.encode(key);
+            byte[] encodedValue = valueCodec.encode(value);
+            logs.get(partitionIndex).append(encodedKey, encodedValue);
+            TreeMetrics.count(TreeMetrics.FLUSHED_BYTES, encodedKey.length + encodedValue.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
-        public V getValue() {
-            return value;
+    // null only when the key is not on disk, a failed read throws instead of looking like a miss
+    private V readFromDisk(int partitionIndex, K key) {
+        try {
+            byte[] value = logs.get(partitionIndex).get(keyCodec.encode(key));
+            return value != null ? valueCodec.decode(value) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 }
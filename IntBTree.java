@@ -0,0 +1,257 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// B+tree specialized for int keys and values. nodes keep their keys and values in int[]
+// arrays and shift them with System.arraycopy, nothing is boxed on insert, search or delete.
+// it is an in-memory index, node buffers and HashPartition flushing stay with BTree
+class IntBTree {
+    private Node root;
+    private final int bufferSize;
+    private int size;
+    private int splitKey; // separator handed up by the last split, only used under the write lock
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public IntBTree(int bufferSize) {
+        if (bufferSize < 3) {
+            throw new IllegalArgumentException("bufferSize must be at least 3");
+        }
+        this.bufferSize = bufferSize;
+        this.root = new Node(true, bufferSize);
+    }
+
+    public void insert(int key, int value) {
+        lock.writeLock().lock();
+        try {
+            Node sibling = insert(root, key, value);
+            if (sibling != null) {
+                Node newRoot = new Node(false, bufferSize);
+                newRoot.keys[0] = splitKey;
+                newRoot.children[0] = root;
+                newRoot.children[1] = sibling;
+                newRoot.count = 1;
+                root = newRoot;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // returns the new right sibling if node split, its separator is left in splitKey
+    private Node insert(Node node, int key, int value) {
+        int index = Arrays.binarySearch(node.keys, 0, node.count, key);
+        if (node.leaf) {
+            if (index >= 0) {
+                node.values[index] = value;
+                return null;
+            }
+            index = -index - 1;
+            System.arraycopy(node.keys, index, node.keys, index + 1, node.count - index);
+            System.arraycopy(node.values, index, node.values, index + 1, node.count - index);
+            node.keys[index] = key;
+            node.values[index] = value;
+            node.count++;
+            size++;
+            return node.count > bufferSize ? splitLeaf(node) : null;
+        }
+
+        int child = childIndex(index);
+        Node sibling = insert(node.children[child], key, value);
+        if (sibling == null) {
+            return null;
+        }
+        System.arraycopy(node.keys, child, node.keys, child + 1, node.count - child);
+        System.arraycopy(node.children, child + 1, node.children, child + 2, node.count - child);
+        node.keys[child] = splitKey;
+        node.children[child + 1] = sibling;
+        node.count++;
+        return node.count > bufferSize ? splitInner(node) : null;
+    }
+
+    private Node splitLeaf(Node node) {
+        int midIndex = node.count / 2;
+        Node rightNode = new Node(true, bufferSize);
+        rightNode.count = node.count - midIndex;
+        System.arraycopy(node.keys, midIndex, rightNode.keys, 0, rightNode.count);
+        System.arraycopy(node.values, midIndex, rightNode.values, 0, rightNode.count);
+        node.count = midIndex;
+        rightNode.next = node.next;
+        node.next = rightNode;
+        splitKey = rightNode.keys[0];
+        return rightNode;
+    }
+
+    private Node splitInner(Node node) {
+        int midIndex = node.count / 2;
+        Node rightNode = new Node(false, bufferSize);
+        rightNode.count = node.count - midIndex - 1;
+        System.arraycopy(node.keys, midIndex + 1, rightNode.keys, 0, rightNode.count);
+        System.arraycopy(node.children, midIndex + 1, rightNode.children, 0, rightNode.count + 1);
+        Arrays.fill(node.children, midIndex + 1, node.count + 1, null);
+        splitKey = node.keys[midIndex];
+        node.count = midIndex;
+        return rightNode;
+    }
+
+    // binarySearch result to the child that covers the key, equal keys go right
+    private static int childIndex(int index) {
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    private Node findLeafNode(int key) {
+        Node node = root;
+        while (!node.leaf) {
+            node = node.children[childIndex(Arrays.binarySearch(node.keys, 0, node.count, key))];
+        }
+        return node;
+    }
+
+    public int search(int key, int defaultValue) {
+        lock.readLock().lock();
+        try {
+            Node leaf = findLeafNode(key);
+            int index = Arrays.binarySearch(leaf.keys, 0, leaf.count, key);
+            return index >= 0 ? leaf.values[index] : defaultValue;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(int key) {
+        lock.readLock().lock();
+        try {
+            Node leaf = findLeafNode(key);
+            return Arrays.binarySearch(leaf.keys, 0, leaf.count, key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean delete(int key) {
+        lock.writeLock().lock();
+        try {
+            boolean removed = delete(root, key);
+            if (!root.leaf && root.count == 0) {
+                root = root.children[0];
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean delete(Node node, int key) {
+        int index = Arrays.binarySearch(node.keys, 0, node.count, key);
+        if (node.leaf) {
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(node.keys, index + 1, node.keys, index, node.count - index - 1);
+            System.arraycopy(node.values, index + 1, node.values, index, node.count - index - 1);
+            node.count--;
+            size--;
+            return true;
+        }
+
+        int child = childIndex(index);
+        boolean removed = delete(node.children[child], key);
+        if (removed && node.children[child].count < bufferSize / 2) {
+            borrowOrMerge(node, child);
+        }
+        return removed;
+    }
+
+    private void borrowOrMerge(Node parent, int index) {
+        Node node = parent.children[index];
+        Node left = index > 0 ? parent.children[index - 1] : null;
+        Node right = index < parent.count ? parent.children[index + 1] : null;
+
+        if (left != null && left.count > bufferSize / 2) {
+            System.arraycopy(node.keys, 0, node.keys, 1, node.count);
+            if (node.leaf) {
+                System.arraycopy(node.values, 0, node.values, 1, node.count);
+                node.keys[0] = left.keys[left.count - 1];
+                node.values[0] = left.values[left.count - 1];
+                parent.keys[index - 1] = node.keys[0];
+            } else {
+                System.arraycopy(node.children, 0, node.children, 1, node.count + 1);
+                node.keys[0] = parent.keys[index - 1];
+                node.children[0] = left.children[left.count];
+                left.children[left.count] = null;
+                parent.keys[index - 1] = left.keys[left.count - 1];
+            }
+            node.count++;
+            left.count--;
+        } else if (right != null && right.count > bufferSize / 2) {
+            if (node.leaf) {
+                node.keys[node.count] = right.keys[0];
+                node.values[node.count] = right.values[0];
+                System.arraycopy(right.values, 1, right.values, 0, right.count - 1);
+                System.arraycopy(right.keys, 1, right.keys, 0, right.count - 1);
+                parent.keys[index] = right.keys[0];
+            } else {
+                node.keys[node.count] = parent.keys[index];
+                node.children[node.count + 1] = right.children[0];
+                parent.keys[index] = right.keys[0];
+                System.arraycopy(right.keys, 1, right.keys, 0, right.count - 1);
+                System.arraycopy(right.children, 1, right.children, 0, right.count);
+                right.children[right.count] = null;
+            }
+            node.count++;
+            right.count--;
+        } else if (left != null) {
+            merge(parent, index - 1);
+        } else {
+            merge(parent, index);
+        }
+    }
+
+    // folds children[index + 1] into children[index] and drops their separator from parent
+    private void merge(Node parent, int index) {
+        Node left = parent.children[index];
+        Node right = parent.children[index + 1];
+        if (left.leaf) {
+            System.arraycopy(right.keys, 0, left.keys, left.count, right.count);
+            System.arraycopy(right.values, 0, left.values, left.count, right.count);
+            left.count += right.count;
+            left.next = right.next;
+        } else {
+            left.keys[left.count] = parent.keys[index];
+            System.arraycopy(right.keys, 0, left.keys, left.count + 1, right.count);
+            System.arraycopy(right.children, 0, left.children, left.count + 1, right.count + 1);
+            left.count += right.count + 1;
+        }
+
+        System.arraycopy(parent.keys, index + 1, parent.keys, index, parent.count - index - 1);
+        System.arraycopy(parent.children, index + 2, parent.children, index + 1, parent.count - index - 1);
+        parent.children[parent.count] = null;
+        parent.count--;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static final class Node {
+        private final boolean leaf;
+        private final int[] keys;
+        private final int[] values; // leaves only
+        private final Node[] children; // inner nodes only
+        private int count;
+        private Node next; // leaf chain
+
+        // one slot of slack so a node can overflow by one key before it splits
+        private Node(boolean leaf, int bufferSize) {
+            this.leaf = leaf;
+            this.keys = new int[bufferSize + 1];
+            this.values = leaf ? new int[bufferSize + 1] : null;
+            this.children = leaf ? null : new Node[bufferSize + 2];
+        }
+    }
+}
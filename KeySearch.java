@@ -0,0 +1,47 @@
+import java.util.List;
+
+// binary search over the sorted key list of a node, shared by the BTree variants.
+// keeps large bufferSize fanouts at O(log fanout) compareTo calls per level
+final class KeySearch {
+    private KeySearch() {
+    }
+
+    // index of the first key greater than key, which is also the child to descend into
+    static <K extends Comparable<K>> int upperBound(List<K> keys, K key) {
+        int low = 0;
+        int high = keys.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (key.compareTo(keys.get(mid)) >= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // index of the first key greater than or equal to key
+    static <K extends Comparable<K>> int lowerBound(List<K> keys, K key) {
+        int low = 0;
+        int high = keys.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (key.compareTo(keys.get(mid)) > 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // uses compareTo instead of equals like List.indexOf, -1 if key is absent
+    static <K extends Comparable<K>> int indexOf(List<K> keys, K key) {
+        int index = lowerBound(keys, key);
+        if (index < keys.size() && key.compareTo(keys.get(index)) == 0) {
+            return index;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,349 @@
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// LongBTree with its nodes stored as pages of a PageStore. children and leaf links are page ids,
+// there are no parent pointers, and pages emptied by a merge go back to the store's free list.
+//
+// page layout: count (int), leaf flag (int), next leaf (int), padding, then the key slots,
+// followed by the value slots of a leaf or the child slots of an inner node
+class OffHeapLongBTree {
+    private static final int COUNT = 0;
+    private static final int LEAF = 4;
+    private static final int NEXT = 8;
+    private static final int KEYS = 16;
+
+    private final PageStore pages;
+    private final int bufferSize;
+    private final int payload; // offset of the value or child slots
+    private int root;
+    private int size;
+    private long splitKey; // separator handed up by the last split, only used under the write lock
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public OffHeapLongBTree(int pageSize, int pagesPerSlab) {
+        // a leaf needs 16 bytes per slot, one slot more than bufferSize so it can overflow before it splits
+        int slots = (pageSize - KEYS) / 16;
+        if (slots < 4) {
+            throw new IllegalArgumentException("pageSize too small");
+        }
+        this.pages = new PageStore(pageSize, pagesPerSlab);
+        this.bufferSize = slots - 1;
+        this.payload = KEYS + slots * 8;
+        this.root = newNode(true);
+    }
+
+    public void insert(long key, long value) {
+        lock.writeLock().lock();
+        try {
+            int sibling = insert(root, key, value);
+            if (sibling != PageStore.NO_PAGE) {
+                int newRoot = newNode(false);
+                setKey(newRoot, 0, splitKey);
+                setChild(newRoot, 0, root);
+                setChild(newRoot, 1, sibling);
+                setCount(newRoot, 1);
+                root = newRoot;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // returns the new right sibling if node split, its separator is left in splitKey
+    private int insert(int node, long key, long value) {
+        int count = count(node);
+        int index = binarySearch(node, key);
+        if (isLeaf(node)) {
+            if (index >= 0) {
+                setValue(node, index, value);
+                return PageStore.NO_PAGE;
+            }
+            index = -index - 1;
+            pages.copyLongs(node, keyOffset(index), node, keyOffset(index + 1), count - index);
+            pages.copyLongs(node, valueOffset(index), node, valueOffset(index + 1), count - index);
+            setKey(node, index, key);
+            setValue(node, index, value);
+            setCount(node, count + 1);
+            size++;
+            return count + 1 > bufferSize ? splitLeaf(node) : PageStore.NO_PAGE;
+        }
+
+        int child = childIndex(index);
+        int sibling = insert(child(node, child), key, value);
+        if (sibling == PageStore.NO_PAGE) {
+            return PageStore.NO_PAGE;
+        }
+        pages.copyLongs(node, keyOffset(child), node, keyOffset(child + 1), count - child);
+        pages.copyInts(node, childOffset(child + 1), node, childOffset(child + 2), count - child);
+        setKey(node, child, splitKey);
+        setChild(node, child + 1, sibling);
+        setCount(node, count + 1);
+        return count + 1 > bufferSize ? splitInner(node) : PageStore.NO_PAGE;
+    }
+
+    private int splitLeaf(int node) {
+        int count = count(node);
+        int midIndex = count / 2;
+        int rightNode = newNode(true);
+        int rightCount = count - midIndex;
+        pages.copyLongs(node, keyOffset(midIndex), rightNode, keyOffset(0), rightCount);
+        pages.copyLongs(node, valueOffset(midIndex), rightNode, valueOffset(0), rightCount);
+        setCount(rightNode, rightCount);
+        setCount(node, midIndex);
+        setNext(rightNode, next(node));
+        setNext(node, rightNode);
+        splitKey = key(rightNode, 0);
+        return rightNode;
+    }
+
+    private int splitInner(int node) {
+        int count = count(node);
+        int midIndex = count / 2;
+        int rightNode = newNode(false);
+        int rightCount = count - midIndex - 1;
+        pages.copyLongs(node, keyOffset(midIndex + 1), rightNode, keyOffset(0), rightCount);
+        pages.copyInts(node, childOffset(midIndex + 1), rightNode, childOffset(0), rightCount + 1);
+        setCount(rightNode, rightCount);
+        splitKey = key(node, midIndex);
+        setCount(node, midIndex);
+        return rightNode;
+    }
+
+    // binarySearch result to the child that covers the key, equal keys go right
+    private static int childIndex(int index) {
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    // same contract as Arrays.binarySearch over the node's keys
+    private int binarySearch(int node, long key) {
+        int low = 0;
+        int high = count(node) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = key(node, mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private int findLeafNode(long key) {
+        int node = root;
+        while (!isLeaf(node)) {
+            node = child(node, childIndex(binarySearch(node, key)));
+        }
+        return node;
+    }
+
+    public long search(long key, long defaultValue) {
+        lock.readLock().lock();
+        try {
+            int leaf = findLeafNode(key);
+            int index = binarySearch(leaf, key);
+            return index >= 0 ? value(leaf, index) : defaultValue;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(long key) {
+        lock.readLock().lock();
+        try {
+            return binarySearch(findLeafNode(key), key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean delete(long key) {
+        lock.writeLock().lock();
+        try {
+            boolean removed = delete(root, key);
+            if (!isLeaf(root) && count(root) == 0) {
+                int oldRoot = root;
+                root = child(root, 0);
+                pages.free(oldRoot);
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean delete(int node, long key) {
+        int count = count(node);
+        int index = binarySearch(node, key);
+        if (isLeaf(node)) {
+            if (index < 0) {
+                return false;
+            }
+            pages.copyLongs(node, keyOffset(index + 1), node, keyOffset(index), count - index - 1);
+            pages.copyLongs(node, valueOffset(index + 1), node, valueOffset(index), count - index - 1);
+            setCount(node, count - 1);
+            size--;
+            return true;
+        }
+
+        int child = childIndex(index);
+        boolean removed = delete(child(node, child), key);
+        if (removed && count(child(node, child)) < bufferSize / 2) {
+            borrowOrMerge(node, child);
+        }
+        return removed;
+    }
+
+    private void borrowOrMerge(int parent, int index) {
+        int parentCount = count(parent);
+        int node = child(parent, index);
+        int count = count(node);
+        int left = index > 0 ? child(parent, index - 1) : PageStore.NO_PAGE;
+        int right = index < parentCount ? child(parent, index + 1) : PageStore.NO_PAGE;
+
+        if (left != PageStore.NO_PAGE && count(left) > bufferSize / 2) {
+            int leftCount = count(left);
+            pages.copyLongs(node, keyOffset(0), node, keyOffset(1), count);
+            if (isLeaf(node)) {
+                pages.copyLongs(node, valueOffset(0), node, valueOffset(1), count);
+                setKey(node, 0, key(left, leftCount - 1));
+                setValue(node, 0, value(left, leftCount - 1));
+                setKey(parent, index - 1, key(node, 0));
+            } else {
+                pages.copyInts(node, childOffset(0), node, childOffset(1), count + 1);
+                setKey(node, 0, key(parent, index - 1));
+                setChild(node, 0, child(left, leftCount));
+                setKey(parent, index - 1, key(left, leftCount - 1));
+            }
+            setCount(node, count + 1);
+            setCount(left, leftCount - 1);
+        } else if (right != PageStore.NO_PAGE && count(right) > bufferSize / 2) {
+            int rightCount = count(right);
+            if (isLeaf(node)) {
+                setKey(node, count, key(right, 0));
+                setValue(node, count, value(right, 0));
+                pages.copyLongs(right, keyOffset(1), right, keyOffset(0), rightCount - 1);
+                pages.copyLongs(right, valueOffset(1), right, valueOffset(0), rightCount - 1);
+                setKey(parent, index, key(right, 0));
+            } else {
+                setKey(node, count, key(parent, index));
+                setChild(node, count + 1, child(right, 0));
+                setKey(parent, index, key(right, 0));
+                pages.copyLongs(right, keyOffset(1), right, keyOffset(0), rightCount - 1);
+                pages.copyInts(right, childOffset(1), right, childOffset(0), rightCount);
+            }
+            setCount(node, count + 1);
+            setCount(right, rightCount - 1);
+        } else if (left != PageStore.NO_PAGE) {
+            merge(parent, index - 1);
+        } else {
+            merge(parent, index);
+        }
+    }
+
+    // folds child index + 1 into child index, drops their separator and frees the right page
+    private void merge(int parent, int index) {
+        int left = child(parent, index);
+        int right = child(parent, index + 1);
+        int leftCount = count(left);
+        int rightCount = count(right);
+        if (isLeaf(left)) {
+            pages.copyLongs(right, keyOffset(0), left, keyOffset(leftCount), rightCount);
+            pages.copyLongs(right, valueOffset(0), left, valueOffset(leftCount), rightCount);
+            setCount(left, leftCount + rightCount);
+            setNext(left, next(right));
+        } else {
+            setKey(left, leftCount, key(parent, index));
+            pages.copyLongs(right, keyOffset(0), left, keyOffset(leftCount + 1), rightCount);
+            pages.copyInts(right, childOffset(0), left, childOffset(leftCount + 1), rightCount + 1);
+            setCount(left, leftCount + rightCount + 1);
+        }
+
+        int parentCount = count(parent);
+        pages.copyLongs(parent, keyOffset(index + 1), parent, keyOffset(index), parentCount - index - 1);
+        pages.copyInts(parent, childOffset(index + 2), parent, childOffset(index + 1), parentCount - index - 1);
+        setCount(parent, parentCount - 1);
+        pages.free(right);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public PageStore getPageStore() {
+        return pages;
+    }
+
+    private int newNode(boolean leaf) {
+        int page = pages.allocate();
+        pages.putInt(page, COUNT, 0);
+        pages.putInt(page, LEAF, leaf ? 1 : 0);
+        pages.putInt(page, NEXT, PageStore.NO_PAGE);
+        return page;
+    }
+
+    private int count(int node) {
+        return pages.getInt(node, COUNT);
+    }
+
+    private void setCount(int node, int count) {
+        pages.putInt(node, COUNT, count);
+    }
+
+    private boolean isLeaf(int node) {
+        return pages.getInt(node, LEAF) != 0;
+    }
+
+    private int next(int node) {
+        return pages.getInt(node, NEXT);
+    }
+
+    private void setNext(int node, int next) {
+        pages.putInt(node, NEXT, next);
+    }
+
+    private int keyOffset(int index) {
+        return KEYS + index * 8;
+    }
+
+    private int valueOffset(int index) {
+        return payload + index * 8;
+    }
+
+    private int childOffset(int index) {
+        return payload + index * 4;
+    }
+
+    private long key(int node, int index) {
+        return pages.getLong(node, keyOffset(index));
+    }
+
+    private void setKey(int node, int index, long key) {
+        pages.putLong(node, keyOffset(index), key);
+    }
+
+    private long value(int node, int index) {
+        return pages.getLong(node, valueOffset(index));
+    }
+
+    private void setValue(int node, int index, long value) {
+        pages.putLong(node, valueOffset(index), value);
+    }
+
+    private int child(int node, int index) {
+        return pages.getInt(node, childOffset(index));
+    }
+
+    private void setChild(int node, int index, int child) {
+        pages.putInt(node, childOffset(index), child);
+    }
+}
@@ -0,0 +1,115 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// fixed-size pages carved out of direct ByteBuffer slabs and addressed by page id, so node
+// data lives outside the GC-managed heap. released pages are chained through their first
+// four bytes and handed out again before a new page is taken
+class PageStore {
+    public static final int NO_PAGE = -1;
+
+    private final int pageSize;
+    private final int pagesPerSlab;
+    private final List<ByteBuffer> slabs;
+    private int nextPage;
+    private int freeList;
+    private int freePages;
+
+    public PageStore(int pageSize, int pagesPerSlab) {
+        if ((long) pageSize * pagesPerSlab > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("a slab must fit in one ByteBuffer");
+        }
+        this.pageSize = pageSize;
+        this.pagesPerSlab = pagesPerSlab;
+        this.slabs = new ArrayList<>();
+        this.nextPage = 0;
+        this.freeList = NO_PAGE;
+        this.freePages = 0;
+    }
+
+    public int allocate() {
+        int page;
+        if (freeList != NO_PAGE) {
+            page = freeList;
+            freeList = getInt(page, 0);
+            freePages--;
+        } else {
+            page = nextPage++;
+            if (page / pagesPerSlab == slabs.size()) {
+                slabs.add(ByteBuffer.allocateDirect(pageSize * pagesPerSlab));
+            }
+        }
+        return page;
+    }
+
+    public void free(int page) {
+        putInt(page, 0, freeList);
+        freeList = page;
+        freePages++;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getPageCount() {
+        return nextPage - freePages;
+    }
+
+    public int getFreePageCount() {
+        return freePages;
+    }
+
+    public long getCapacityBytes() {
+        return (long) slabs.size() * pagesPerSlab * pageSize;
+    }
+
+    public int getInt(int page, int offset) {
+        return slab(page).getInt(position(page, offset));
+    }
+
+    public void putInt(int page, int offset, int value) {
+        slab(page).putInt(position(page, offset), value);
+    }
+
+    public long getLong(int page, int offset) {
+        return slab(page).getLong(position(page, offset));
+    }
+
+    public void putLong(int page, int offset, long value) {
+        slab(page).putLong(position(page, offset), value);
+    }
+
+    // count longs from one page region to another, overlapping ranges are fine
+    public void copyLongs(int srcPage, int srcOffset, int dstPage, int dstOffset, int count) {
+        if (srcPage == dstPage && dstOffset > srcOffset) {
+            for (int i = count - 1; i >= 0; i--) {
+                putLong(dstPage, dstOffset + i * 8, getLong(srcPage, srcOffset + i * 8));
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                putLong(dstPage, dstOffset + i * 8, getLong(srcPage, srcOffset + i * 8));
+            }
+        }
+    }
+
+    public void copyInts(int srcPage, int srcOffset, int dstPage, int dstOffset, int count) {
+        if (srcPage == dstPage && dstOffset > srcOffset) {
+            for (int i = count - 1; i >= 0; i--) {
+                putInt(dstPage, dstOffset + i * 4, getInt(srcPage, srcOffset + i * 4));
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                putInt(dstPage, dstOffset + i * 4, getInt(srcPage, srcOffset + i * 4));
+            }
+        }
+    }
+
+    private ByteBuffer slab(int page) {
+        return slabs.get(page / pagesPerSlab);
+    }
+
+    private int position(int page, int offset) {
+        return (page % pagesPerSlab) * pageSize + offset;
+    }
+}
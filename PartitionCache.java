@@ -0,0 +1,24 @@
+// bounded in-memory copy of one HashPartition's entries, whatever does not fit is read
+// back from the partition log. implementations are not thread-safe
+interface PartitionCache<K, V> {
+    // null on a miss
+    V get(K key);
+
+    void put(K key, V value);
+
+    int size();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    static <K, V> PartitionCache<K, V> clock(int capacity) {
+        return new ClockCache<>(capacity);
+    }
+
+    static <K, V> PartitionCache<K, V> segmentedLru(int capacity) {
+        return new SegmentedLruCache<>(capacity);
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// maps an encoded key to the offset of its latest record in one segment. a key is identified
+// by its 64-bit hash plus an independent 32-bit fingerprint, keys whose hashes collide get
+// slots of their own further along the probe sequence instead of replacing each other.
+// open addressing over primitive arrays, no boxing. a sealed segment also gets a bloom filter,
+// and both are written next to the segment so reopening doesn't rescan the log
+class SegmentIndex {
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int FORMAT = -2; // leads the index file, files without it are rebuilt
+
+    private long[] hashes; // 0 marks an empty slot
+    private int[] fingerprints;
+    private long[] offsets;
+    private int size;
+    private BloomFilter bloomFilter; // null while the segment is still being appended to
+
+    public SegmentIndex() {
+        this.hashes = new long[64];
+        this.fingerprints = new int[64];
+        this.offsets = new long[64];
+        this.size = 0;
+        this.bloomFilter = null;
+    }
+
+    public static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        // murmur3 finalizer, spreads FNV's weak low bits
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    // murmur2 style, unrelated to hash() so the two rarely collide together
+    public static int fingerprint(byte[] key) {
+        int fingerprint = 0x9747b28c ^ key.length;
+        for (byte b : key) {
+            fingerprint ^= b & 0xff;
+            fingerprint *= 0x5bd1e995;
+            fingerprint ^= fingerprint >>> 15;
+        }
+        fingerprint ^= fingerprint >>> 13;
+        fingerprint *= 0x5bd1e995;
+        return fingerprint ^ (fingerprint >>> 15);
+    }
+
+    public void put(long hash, int fingerprint, long offset) {
+        if ((size + 1) * 2 > hashes.length) {
+            resize(hashes.length * 2);
+        }
+        int mask = hashes.length - 1;
+        int slot = (int) hash & mask;
+        while (hashes[slot] != 0 && (hashes[slot] != hash || fingerprints[slot] != fingerprint)) {
+            slot = (slot + 1) & mask;
+        }
+        if (hashes[slot] == 0) {
+            hashes[slot] = hash;
+            fingerprints[slot] = fingerprint;
+            size++;
+        }
+        offsets[slot] = offset;
+    }
+
+    // offset of the latest record with this key hash and fingerprint, or -1
+    public long get(long hash, int fingerprint) {
+        if (bloomFilter != null && !bloomFilter.mightContain(hash)) {
+            return -1;
+        }
+        int mask = hashes.length - 1;
+        int slot = (int) hash & mask;
+        while (hashes[slot] != 0) {
+            if (hashes[slot] == hash && fingerprints[slot] == fingerprint) {
+                return offsets[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void seal() {
+        bloomFilter = new BloomFilter(size, BLOOM_BITS_PER_KEY);
+        for (long hash : hashes) {
+            if (hash != 0) {
+                bloomFilter.add(hash);
+            }
+        }
+    }
+
+    public void writeTo(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(FORMAT);
+            out.writeInt(size);
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] != 0) {
+                    out.writeLong(hashes[i]);
+                    out.writeInt(fingerprints[i]);
+                    out.writeLong(offsets[i]);
+                }
+            }
+            bloomFilter.writeTo(out);
+        }
+    }
+
+    public static SegmentIndex readFrom(Path file) throws IOException {
+        SegmentIndex index = new SegmentIndex();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT) {
+                throw new IOException("index without fingerprints: " + file);
+            }
+            int size = in.readInt();
+            index.resize(Integer.highestOneBit(Math.max(32, size)) * 4);
+            for (int i = 0; i < size; i++) {
+                index.put(in.readLong(), in.readInt(), in.readLong());
+            }
+            index.bloomFilter = BloomFilter.readFrom(in);
+        }
+        return index;
+    }
+
+    private void resize(int capacity) {
+        long[] oldHashes = hashes;
+        int[] oldFingerprints = fingerprints;
+        long[] oldOffsets = offsets;
+        hashes = new long[capacity];
+        fingerprints = new int[capacity];
+        offsets = new long[capacity];
+        size = 0;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0) {
+                put(oldHashes[i], oldFingerprints[i], oldOffsets[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,432 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+// append-only log of one partition, split into numbered segment files <name>_<n>.log.
+// a record is key length (int), value length (int), key bytes, value bytes. appends are
+// gathered in a write buffer and go out in one write per flush, and segments roll over
+// once they reach segmentSize.
+// every segment has a SegmentIndex, sealed ones are persisted as <name>_<n>.idx, so get()
+// only touches the disk for the one record it returns. in MMAP mode that record is read
+// straight out of a mapping of its segment, the OS page cache is the only buffer in between.
+// lookups share a read lock and run in parallel, appends, flushes and rollovers take the write lock
+class SegmentLog implements Closeable {
+    public enum FsyncPolicy {
+        NONE,   // leave it to the OS page cache
+        FLUSH,  // fsync once per flush, covers every append since the last one
+        ALWAYS  // fsync after every append
+    }
+
+    public enum ReadMode {
+        CHANNEL, // positional reads into a heap buffer
+        MMAP     // read-only mappings, remapped when the active segment outgrows its mapping
+    }
+
+    public interface Visitor {
+        // return false to stop the scan
+        boolean visit(byte[] key, byte[] value);
+    }
+
+    public static final int HEADER = 8;
+    private static final int READ_AHEAD = 128; // value bytes fetched with the header and key
+
+    private final Path directory;
+    private final String name;
+    private final long segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final ReadMode readMode;
+    private final List<Path> segments;
+    private final List<SegmentIndex> indexes;
+    private final List<FileChannel> readers; // opened on first get(), the active segment reads through channel
+    private final List<MappedByteBuffer> mappings; // MMAP mode only, mapped on first get()
+    private final ByteBuffer writeBuffer;
+    private FileChannel channel;
+    private long segmentLength; // bytes in the current segment, buffered ones included
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public SegmentLog(Path directory, String name, long segmentSize, int writeBufferSize, FsyncPolicy fsyncPolicy,
+            ReadMode readMode) throws IOException {
+        if (readMode == ReadMode.MMAP && segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("a mapped segment must fit in one MappedByteBuffer");
+        }
+        this.directory = directory;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        this.readMode = readMode;
+        this.segments = new ArrayList<>();
+        this.indexes = new ArrayList<>();
+        this.readers = new ArrayList<>();
+        this.mappings = new ArrayList<>();
+        this.writeBuffer = ByteBuffer.allocate(writeBufferSize);
+
+        Files.createDirectories(directory);
+        TreeMap<Integer, Path> existing = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                int sequence = sequenceOf(file.getFileName().toString());
+                if (sequence >= 0) {
+                    existing.put(sequence, file);
+                }
+            });
+        }
+        for (Path segment : existing.values()) {
+            segments.add(segment);
+            indexes.add(null);
+            readers.add(null);
+            mappings.add(null);
+        }
+
+        for (int i = 0; i < segments.size() - 1; i++) {
+            indexes.set(i, loadIndex(segments.get(i)));
+        }
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            int last = segments.size() - 1;
+            SegmentIndex index = new SegmentIndex();
+            // drop a record torn by a crash, later appends would be unreadable behind it
+            segmentLength = buildIndex(segments.get(last), index);
+            indexes.set(last, index);
+            channel = FileChannel.open(segments.get(last), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.truncate(segmentLength);
+            channel.position(segmentLength);
+        }
+    }
+
+    public void append(byte[] key, byte[] value) throws IOException {
+        lock.writeLock().lock();
+        try {
+            appendRecord(key, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void appendRecord(byte[] key, byte[] value) throws IOException {
+        int length = HEADER + key.length + value.length;
+        if (segmentLength > 0 && segmentLength + length > segmentSize) {
+            roll();
+        }
+        indexes.get(indexes.size() - 1).put(SegmentIndex.hash(key), SegmentIndex.fingerprint(key), segmentLength);
+        if (length > writeBuffer.remaining()) {
+            flushBuffer();
+        }
+        if (length > writeBuffer.capacity()) {
+            ByteBuffer record = ByteBuffer.allocate(length);
+            record.putInt(key.length).putInt(value.length).put(key).put(value);
+            record.flip();
+            writeFully(record);
+        } else {
+            writeBuffer.putInt(key.length).putInt(value.length).put(key).put(value);
+        }
+        segmentLength += length;
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            flushAndSync();
+        }
+    }
+
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            flushAndSync();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void flushAndSync() throws IOException {
+        flushBuffer();
+        if (fsyncPolicy != FsyncPolicy.NONE) {
+            channel.force(false);
+        }
+    }
+
+    // value of the newest record for key, or null
+    public byte[] get(byte[] key) throws IOException {
+        lock.readLock().lock();
+        try {
+            long hash = SegmentIndex.hash(key);
+            int fingerprint = SegmentIndex.fingerprint(key);
+            int last = segments.size() - 1;
+            long flushedLength = segmentLength - writeBuffer.position();
+            for (int i = last; i >= 0; i--) {
+                long offset = indexes.get(i).get(hash, fingerprint);
+                if (offset < 0) {
+                    continue;
+                }
+                byte[] value;
+                if (i == last && offset >= flushedLength) {
+                    value = readBuffered((int) (offset - flushedLength), key);
+                } else if (readMode == ReadMode.MMAP) {
+                    value = readMapped(i, offset, flushedLength, key);
+                } else {
+                    value = readRecord(i, offset, key);
+                }
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // records still in the write buffer are served from it, a lookup never forces a flush
+    private byte[] readBuffered(int position, byte[] key) {
+        int keyLength = writeBuffer.getInt(position);
+        int valueLength = writeBuffer.getInt(position + 4);
+        if (keyLength != key.length
+                || !writeBuffer.slice(position + HEADER, keyLength).equals(ByteBuffer.wrap(key))) {
+            return null;
+        }
+        byte[] value = new byte[valueLength];
+        writeBuffer.get(position + HEADER + keyLength, value);
+        return value;
+    }
+
+    // one positional read covers the header, the key and short values
+    private byte[] readRecord(int segment, long offset, byte[] key) throws IOException {
+        FileChannel reader = reader(segment);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + key.length + READ_AHEAD);
+        readFully(reader, record, offset);
+        int keyLength = record.getInt(0);
+        int valueLength = record.getInt(4);
+        if (keyLength != key.length || !Arrays.equals(record.array(), HEADER, HEADER + keyLength, key, 0, keyLength)) {
+            return null;
+        }
+
+        int valueStart = HEADER + keyLength;
+        if (valueLength <= READ_AHEAD) {
+            return Arrays.copyOfRange(record.array(), valueStart, valueStart + valueLength);
+        }
+        ByteBuffer value = ByteBuffer.allocate(valueLength);
+        readFully(reader, value, offset + valueStart);
+        return value.array();
+    }
+
+    // compares the key in place, only the value is copied out of the mapping
+    private byte[] readMapped(int segment, long offset, long flushedLength, byte[] key) throws IOException {
+        MappedByteBuffer mapping = mapping(segment, offset + HEADER + key.length, flushedLength);
+        int position = (int) offset;
+        int keyLength = mapping.getInt(position);
+        int valueLength = mapping.getInt(position + 4);
+        if (keyLength != key.length
+                || !mapping.slice(position + HEADER, keyLength).equals(ByteBuffer.wrap(key))) {
+            return null;
+        }
+
+        byte[] value = new byte[valueLength];
+        mapping.get(position + HEADER + keyLength, value);
+        return value;
+    }
+
+    // a mapping is fixed in size, the active segment is remapped once a record lies past its end.
+    // flushedLength is where the active segment's file ends, the rest is still in the write buffer
+    private MappedByteBuffer mapping(int segment, long end, long flushedLength) throws IOException {
+        synchronized (mappings) {
+            MappedByteBuffer mapping = mappings.get(segment);
+            if (mapping == null || mapping.capacity() < end) {
+                if (segment == segments.size() - 1) {
+                    mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, flushedLength);
+                } else {
+                    try (FileChannel reader = FileChannel.open(segments.get(segment), StandardOpenOption.READ)) {
+                        mapping = reader.map(FileChannel.MapMode.READ_ONLY, 0, reader.size());
+                    }
+                }
+                mappings.set(segment, mapping);
+            }
+            return mapping;
+        }
+    }
+
+    // reads until the buffer is full or the segment ends
+    private void readFully(FileChannel reader, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = reader.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+    }
+
+    private FileChannel reader(int segment) throws IOException {
+        if (segment == segments.size() - 1) {
+            return channel;
+        }
+        synchronized (readers) {
+            FileChannel reader = readers.get(segment);
+            if (reader == null) {
+                reader = FileChannel.open(segments.get(segment), StandardOpenOption.READ);
+                readers.set(segment, reader);
+            }
+            return reader;
+        }
+    }
+
+    // visits every record, oldest first
+    public void scan(Visitor visitor) throws IOException {
+        lock.writeLock().lock();
+        try {
+            flushBuffer();
+            scanSegments(visitor);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void scanSegments(Visitor visitor) throws IOException {
+        for (Path segment : segments) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+                while (true) {
+                    byte[] key;
+                    byte[] value;
+                    try {
+                        key = new byte[in.readInt()];
+                        value = new byte[in.readInt()];
+                        in.readFully(key);
+                        in.readFully(value);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (!visitor.visit(key, value)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    public List<Path> getSegments() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(segments);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            flushAndSync();
+            channel.close();
+            for (FileChannel reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void roll() throws IOException {
+        flushAndSync();
+        channel.close();
+        int last = segments.size() - 1;
+        SegmentIndex index = indexes.get(last);
+        index.seal();
+        index.writeTo(indexFile(segments.get(last)));
+        openSegment(sequenceOf(segments.get(last).getFileName().toString()) + 1);
+    }
+
+    private void openSegment(int sequence) throws IOException {
+        Path segment = directory.resolve(name + "_" + sequence + ".log");
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segments.add(segment);
+        indexes.add(new SegmentIndex());
+        readers.add(null);
+        mappings.add(null);
+        segmentLength = 0;
+    }
+
+    // a missing or unreadable index file is rebuilt from its segment, so is one written before
+    // the index kept fingerprints
+    private SegmentIndex loadIndex(Path segment) throws IOException {
+        Path indexFile = indexFile(segment);
+        if (Files.exists(indexFile)) {
+            try {
+                return SegmentIndex.readFrom(indexFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        SegmentIndex index = new SegmentIndex();
+        buildIndex(segment, index);
+        index.seal();
+        index.writeTo(indexFile);
+        return index;
+    }
+
+    private Path indexFile(Path segment) {
+        String fileName = segment.getFileName().toString();
+        return segment.resolveSibling(fileName.substring(0, fileName.length() - ".log".length()) + ".idx");
+    }
+
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        writeFully(writeBuffer);
+        writeBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private int sequenceOf(String fileName) {
+        String prefix = name + "_";
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(".log")) {
+            return -1;
+        }
+        String sequence = fileName.substring(prefix.length(), fileName.length() - ".log".length());
+        if (sequence.isEmpty() || !sequence.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Integer.parseInt(sequence);
+    }
+
+    // indexes every complete record of a segment, returns the length they cover
+    private static long buildIndex(Path segment, SegmentIndex index) throws IOException {
+        long size = Files.size(segment);
+        long length = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+            while (length + HEADER <= size) {
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                long recordLength = HEADER + (long) keyLength + valueLength;
+                if (keyLength < 0 || valueLength < 0 || length + recordLength > size) {
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                in.readFully(key);
+                in.skipNBytes(valueLength);
+                index.put(SegmentIndex.hash(key), SegmentIndex.fingerprint(key), length);
+                length += recordLength;
+            }
+        }
+        return length;
+    }
+}
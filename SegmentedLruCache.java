@@ -0,0 +1,88 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// segmented LRU: new entries start on probation and only move to the protected segment when
+// they are hit again, so a scan of one-off keys flushes probation but not the hot set.
+// protected entries pushed out go back to probation instead of leaving the cache
+class SegmentedLruCache<K, V> implements PartitionCache<K, V> {
+    private final int capacity;
+    private final int protectedCapacity;
+    private final LinkedHashMap<K, V> probation; // access order, eldest first
+    private final LinkedHashMap<K, V> protectedSegment;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public SegmentedLruCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.protectedCapacity = capacity - Math.max(1, capacity / 5);
+        this.probation = new LinkedHashMap<>(16, 0.75f, true);
+        this.protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public V get(K key) {
+        V value = protectedSegment.get(key);
+        if (value != null) {
+            hits++;
+            return value;
+        }
+        value = probation.remove(key);
+        if (value == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        protectedSegment.put(key, value);
+        if (protectedSegment.size() > protectedCapacity) {
+            Map.Entry<K, V> demoted = removeEldest(protectedSegment);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+        return value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        if (protectedSegment.containsKey(key)) {
+            protectedSegment.put(key, value);
+            return;
+        }
+        probation.put(key, value);
+        if (size() > capacity) {
+            removeEldest(probation.isEmpty() ? protectedSegment : probation);
+            evictions++;
+        }
+    }
+
+    private static <K, V> Map.Entry<K, V> removeEldest(LinkedHashMap<K, V> segment) {
+        Iterator<Map.Entry<K, V>> iterator = segment.entrySet().iterator();
+        Map.Entry<K, V> eldest = iterator.next();
+        Map.Entry<K, V> removed = Map.entry(eldest.getKey(), eldest.getValue());
+        iterator.remove();
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    @Override
+    public long getHits() {
+        return hits;
+    }
+
+    @Override
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+}
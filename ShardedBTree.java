@@ -0,0 +1,566 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// range partitioning over independent trees. shard i holds the keys in [lower(i), lower(i+1)),
+// and every shard is a whole BTree with its own root, latches and storagePath/shard_<id>, so
+// operations on different shards share nothing but the routing table. built on BTree.java,
+// the other variants have no scan, bulkLoad or batch operations.
+// the routing table is an immutable list replaced on every split. an operation routes, takes
+// its shard's read lock and re-routes if the shard was split meanwhile. a split copies the
+// shard into two new trees while it keeps serving, and only takes the shard's write lock to
+// catch up on the keys written during the copy and swap the routing table
+class ShardedBTree<K extends Comparable<K>, V> implements Closeable {
+    private static final String MANIFEST = "shards";
+    private static final double SPLIT_FILL_FACTOR = 0.7; // the halves of a hot shard keep taking inserts
+
+    private static final class Shard<K extends Comparable<K>, V> {
+        private final int id;
+        private final K lower; // inclusive, null for the first shard
+        private final BTree<K, V> tree;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final LongAdder operations = new LongAdder(); // since the splitter last looked
+        private boolean retired; // split into two new shards, guarded by lock
+        private volatile Set<K> written; // keys written while a split copies the shard, null otherwise
+
+        Shard(int id, K lower, BTree<K, V> tree) {
+            this.id = id;
+            this.lower = lower;
+            this.tree = tree;
+        }
+    }
+
+    private final int bufferSize;
+    private final int numPartitions;
+    private final String storagePath;
+    private final WriteAheadLog.SyncPolicy syncPolicy; // null without logging, then nothing survives a restart
+    private final Codec<K> keyCodec = Codec.serializable();
+    private final ExecutorService workers;
+    private volatile List<Shard<K, V>> shards;
+    private int nextShardId;
+    private final Object splitLock = new Object(); // one split at a time, also guards nextShardId and the manifest
+    private ScheduledExecutorService splitter;
+    private int maxShards;
+
+    public ShardedBTree(int bufferSize, int numPartitions, String storagePath, List<K> splitKeys) {
+        this(bufferSize, numPartitions, storagePath, splitKeys, null);
+    }
+
+    // splitKeys are the lower bounds of the shards after the first, ascending. with syncPolicy
+    // every shard logs its writes and the shard layout is kept in storagePath/shards, a
+    // reopened tree takes its layout from there and ignores splitKeys
+    public ShardedBTree(int bufferSize, int numPartitions, String storagePath, List<K> splitKeys,
+            WriteAheadLog.SyncPolicy syncPolicy) {
+        this.bufferSize = bufferSize;
+        this.numPartitions = numPartitions;
+        this.storagePath = storagePath;
+        this.syncPolicy = syncPolicy;
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "shard-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Path manifest = Paths.get(storagePath, MANIFEST);
+        List<Shard<K, V>> opened = new ArrayList<>();
+        boolean reopened = syncPolicy != null && Files.exists(manifest);
+        try {
+            if (reopened) {
+                try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(manifest)))) {
+                    nextShardId = in.readInt();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        int id = in.readInt();
+                        K lower = null;
+                        if (in.readBoolean()) {
+                            byte[] bytes = new byte[in.readInt()];
+                            in.readFully(bytes);
+                            lower = keyCodec.decode(bytes);
+                        }
+                        opened.add(new Shard<>(id, lower, openTree(id)));
+                    }
+                }
+            } else {
+                K previous = null;
+                for (K key : splitKeys) {
+                    if (previous != null && key.compareTo(previous) <= 0) {
+                        throw new IllegalArgumentException("splitKeys are not ascending at " + key);
+                    }
+                    previous = key;
+                }
+                opened.add(new Shard<>(nextShardId, null, openTree(nextShardId++)));
+                for (K key : splitKeys) {
+                    opened.add(new Shard<>(nextShardId, key, openTree(nextShardId++)));
+                }
+            }
+            this.shards = List.copyOf(opened);
+            if (!reopened) {
+                writeManifest();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void insert(K key, V value) {
+        withShard(key, true, tree -> {
+            tree.insert(key, value);
+            return null;
+        });
+    }
+
+    public V search(K key) {
+        return withShard(key, false, tree -> tree.search(key));
+    }
+
+    public void delete(K key) {
+        withShard(key, true, tree -> {
+            tree.delete(key);
+            return null;
+        });
+    }
+
+    // runs op on the tree of the shard holding key under the shard's read lock
+    private <R> R withShard(K key, boolean write, Function<BTree<K, V>, R> op) {
+        while (true) {
+            Shard<K, V> shard = route(shards, key);
+            shard.lock.readLock().lock();
+            try {
+                if (!shard.retired) {
+                    shard.operations.increment();
+                    R result = op.apply(shard.tree);
+                    if (write) {
+                        recordWrite(shard, key);
+                    }
+                    return result;
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+    }
+
+    // caller holds the shard's read lock, after the write went into the tree
+    private void recordWrite(Shard<K, V> shard, K key) {
+        Set<K> written = shard.written;
+        if (written != null) {
+            written.add(key);
+        }
+    }
+
+    // the last shard whose lower bound is at most key
+    private Shard<K, V> route(List<Shard<K, V>> table, K key) {
+        int low = 1;
+        int high = table.size() - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (table.get(middle).lower.compareTo(key) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return table.get(found);
+    }
+
+    // the batch operations group their input by shard and run the groups in parallel, each
+    // with the tree's own batch operation
+    public void insertAll(Collection<Map.Entry<K, V>> entries) {
+        fanOut(entries, Map.Entry::getKey, true, BTree::insertAll);
+    }
+
+    public Map<K, V> getAll(Collection<K> keys) {
+        Map<K, V> found = new ConcurrentHashMap<>();
+        fanOut(keys, Function.identity(), false, (tree, group) -> found.putAll(tree.getAll(group)));
+        return new HashMap<>(found);
+    }
+
+    public void deleteAll(Collection<K> keys) {
+        fanOut(keys, Function.identity(), true, BTree::deleteAll);
+    }
+
+    // groups that reach a shard after it was split are routed again on the next round
+    private <T> void fanOut(Collection<T> items, Function<T, K> keyOf, boolean write,
+            BiConsumer<BTree<K, V>, List<T>> op) {
+        Collection<T> remaining = items;
+        while (!remaining.isEmpty()) {
+            List<Shard<K, V>> table = shards;
+            Map<Shard<K, V>, List<T>> groups = new LinkedHashMap<>();
+            for (T item : remaining) {
+                groups.computeIfAbsent(route(table, keyOf.apply(item)), shard -> new ArrayList<>()).add(item);
+            }
+
+            List<T> rerouted = new ArrayList<>();
+            List<CompletableFuture<Void>> tasks = new ArrayList<>();
+            for (Map.Entry<Shard<K, V>, List<T>> group : groups.entrySet()) {
+                Runnable task = () -> {
+                    Shard<K, V> shard = group.getKey();
+                    shard.lock.readLock().lock();
+                    try {
+                        if (shard.retired) {
+                            synchronized (rerouted) {
+                                rerouted.addAll(group.getValue());
+                            }
+                            return;
+                        }
+                        shard.operations.add(group.getValue().size());
+                        op.accept(shard.tree, group.getValue());
+                        if (write) {
+                            for (T item : group.getValue()) {
+                                recordWrite(shard, keyOf.apply(item));
+                            }
+                        }
+                    } finally {
+                        shard.lock.readLock().unlock();
+                    }
+                };
+                if (groups.size() == 1) {
+                    task.run();
+                } else {
+                    tasks.add(CompletableFuture.runAsync(task, workers));
+                }
+            }
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+            remaining = rerouted;
+        }
+    }
+
+    // keys in [from, to] in ascending order, a null bound is unbounded. every shard the range
+    // overlaps is scanned in parallel and the results are joined in shard order
+    public List<Map.Entry<K, V>> range(K from, K to) {
+        while (true) {
+            List<Shard<K, V>> table = shards;
+            int first = from == null ? 0 : table.indexOf(route(table, from));
+            int last = to == null ? table.size() - 1 : table.indexOf(route(table, to));
+
+            List<CompletableFuture<List<Map.Entry<K, V>>>> scans = new ArrayList<>();
+            for (int i = first; i <= last; i++) {
+                Shard<K, V> shard = table.get(i);
+                scans.add(CompletableFuture.supplyAsync(() -> scanShard(shard, from, to), workers));
+            }
+            List<Map.Entry<K, V>> result = new ArrayList<>();
+            boolean split = false;
+            for (CompletableFuture<List<Map.Entry<K, V>>> scan : scans) {
+                List<Map.Entry<K, V>> entries = scan.join();
+                if (entries == null) {
+                    split = true;
+                } else {
+                    result.addAll(entries);
+                }
+            }
+            if (!split) {
+                return result;
+            }
+        }
+    }
+
+    // null if the shard was split before the scan got its lock
+    private List<Map.Entry<K, V>> scanShard(Shard<K, V> shard, K from, K to) {
+        shard.lock.readLock().lock();
+        try {
+            if (shard.retired) {
+                return null;
+            }
+            shard.operations.increment();
+            List<Map.Entry<K, V>> entries = new ArrayList<>();
+            shard.tree.scan(from, to).forEachRemaining(entries::add);
+            return entries;
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    // every intervalMillis the shard that took the most operations since the last look is
+    // split in two if it took at least minOperations and more than hotShare of all of them,
+    // until there are maxShards shards
+    public void startSplitter(double hotShare, long minOperations, int maxShards, long intervalMillis) {
+        if (hotShare <= 0 || hotShare > 1) {
+            throw new IllegalArgumentException("hotShare must be in (0, 1]");
+        }
+        synchronized (splitLock) {
+            if (splitter != null) {
+                throw new IllegalStateException("splitter already running");
+            }
+            this.maxShards = maxShards;
+            splitter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "shard-splitter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            splitter.scheduleWithFixedDelay(() -> splitHottest(hotShare, minOperations), intervalMillis,
+                    intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void splitHottest(double hotShare, long minOperations) {
+        try {
+            Shard<K, V> hottest = null;
+            long hottestOperations = 0;
+            long total = 0;
+            for (Shard<K, V> shard : shards) {
+                long operations = shard.operations.sumThenReset();
+                total += operations;
+                if (operations > hottestOperations) {
+                    hottest = shard;
+                    hottestOperations = operations;
+                }
+            }
+            if (hottest != null && shards.size() < maxShards && hottestOperations >= minOperations
+                    && hottestOperations > hotShare * total) {
+                split(hottest);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // splits the shard holding key at its median key, false if it has fewer than two keys
+    public boolean splitShard(K key) {
+        return split(route(shards, key));
+    }
+
+    // copies the shard's entries into two new trees with bulkLoad while it keeps taking
+    // operations, every key written meanwhile is noted. the noted keys are copied over again
+    // once without and once more under the shard's write lock, then the new routing table is
+    // published and the old tree dropped. a split only blocks the shard for that last catch-up
+    private boolean split(Shard<K, V> shard) {
+        synchronized (splitLock) {
+            shard.lock.writeLock().lock();
+            try {
+                if (shard.retired) {
+                    return false;
+                }
+                // set while no write is running, so every write from here on is noted
+                shard.written = ConcurrentHashMap.newKeySet();
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+
+            Shard<K, V> left = null;
+            Shard<K, V> right = null;
+            boolean published = false;
+            try {
+                List<Map.Entry<K, V>> entries = new ArrayList<>();
+                shard.tree.scan(null, null).forEachRemaining(entries::add);
+                if (entries.size() < 2) {
+                    return false;
+                }
+                int middle = entries.size() / 2;
+                left = new Shard<>(nextShardId, shard.lower, openEmptyTree(nextShardId++));
+                left.tree.bulkLoad(entries.subList(0, middle).iterator(), SPLIT_FILL_FACTOR);
+                right = new Shard<>(nextShardId, entries.get(middle).getKey(), openEmptyTree(nextShardId++));
+                right.tree.bulkLoad(entries.subList(middle, entries.size()).iterator(), SPLIT_FILL_FACTOR);
+                entries = null;
+
+                catchUp(shard, left, right);
+                shard.lock.writeLock().lock();
+                try {
+                    catchUp(shard, left, right);
+                    List<Shard<K, V>> table = new ArrayList<>(shards);
+                    int index = table.indexOf(shard);
+                    table.set(index, left);
+                    table.add(index + 1, right);
+                    shards = List.copyOf(table);
+                    writeManifest();
+                    shard.retired = true;
+                    published = true;
+                } finally {
+                    shard.lock.writeLock().unlock();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                shard.written = null;
+                if (!published) {
+                    discard(left);
+                    discard(right);
+                }
+            }
+        }
+        // no operation can reach the retired tree any more
+        shard.tree.close();
+        deleteDirectory(shardPath(shard.id));
+        return true;
+    }
+
+    // copies the current state of every key written to shard since the last call into the half
+    // that now owns it. what was written doesn't matter, the old tree has the newest value
+    private void catchUp(Shard<K, V> shard, Shard<K, V> left, Shard<K, V> right) {
+        Set<K> written = shard.written;
+        for (K key : written) {
+            written.remove(key);
+            BTree<K, V> half = key.compareTo(right.lower) < 0 ? left.tree : right.tree;
+            V value = shard.tree.search(key);
+            if (value != null) {
+                half.insert(key, value);
+            } else {
+                half.delete(key);
+            }
+        }
+    }
+
+    private void discard(Shard<K, V> half) {
+        if (half != null) {
+            half.tree.close();
+            deleteDirectory(shardPath(half.id));
+        }
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    // lower bound of every shard after the first
+    public List<K> getSplitKeys() {
+        List<K> keys = new ArrayList<>();
+        List<Shard<K, V>> table = shards;
+        for (int i = 1; i < table.size(); i++) {
+            keys.add(table.get(i).lower);
+        }
+        return keys;
+    }
+
+    public void writeBufferToDisk() {
+        forEachShard(BTree::writeBufferToDisk);
+    }
+
+    // only with logging
+    public void checkpoint() {
+        forEachShard(BTree::checkpoint);
+    }
+
+    private void forEachShard(Consumer<BTree<K, V>> op) {
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (Shard<K, V> shard : shards) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                shard.lock.readLock().lock();
+                try {
+                    if (!shard.retired) {
+                        op.accept(shard.tree);
+                    }
+                } finally {
+                    shard.lock.readLock().unlock();
+                }
+            }, workers));
+        }
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    // closes every shard, the tree must not be used afterwards
+    @Override
+    public void close() {
+        synchronized (splitLock) {
+            if (splitter != null) {
+                splitter.shutdown();
+            }
+        }
+        if (splitter != null) {
+            try {
+                splitter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdown();
+        for (Shard<K, V> shard : shards) {
+            shard.tree.close();
+        }
+    }
+
+    private Path shardPath(int id) {
+        return Paths.get(storagePath, "shard_" + id);
+    }
+
+    private BTree<K, V> openTree(int id) {
+        String path = shardPath(id).toString();
+        return syncPolicy == null ? new BTree<>(bufferSize, numPartitions, path)
+                : new BTree<>(bufferSize, numPartitions, path, syncPolicy);
+    }
+
+    // a split that crashed before publishing its manifest may have left files under the id
+    private BTree<K, V> openEmptyTree(int id) {
+        deleteDirectory(shardPath(id));
+        return openTree(id);
+    }
+
+    // caller holds splitLock or is the constructor. replaced atomically like CheckpointStore's manifest
+    private void writeManifest() throws IOException {
+        if (syncPolicy == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(nextShardId);
+            out.writeInt(shards.size());
+            for (Shard<K, V> shard : shards) {
+                out.writeInt(shard.id);
+                out.writeBoolean(shard.lower != null);
+                if (shard.lower != null) {
+                    byte[] lower = keyCodec.encode(shard.lower);
+                    out.writeInt(lower.length);
+                    out.write(lower);
+                }
+            }
+        }
+        Path temp = Paths.get(storagePath, MANIFEST + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, Paths.get(storagePath, MANIFEST), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void deleteDirectory(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            Iterator<Path> sorted = paths.sorted(Comparator.reverseOrder()).iterator();
+            while (sorted.hasNext()) {
+                Files.delete(sorted.next());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// throughput and latency benchmark for the tree variants. like the variants themselves it is
+// compiled against one BTree at a time:
+//   reentrant: BTree.java BTreeNode_Reentrant.java
+//   b-link:    BTree_BLink.java BTreeNode_Reentrant.java
+//   olc:       BTree_OLC.java BTreeNode_spin.java
+// plus the shared sources HashPartition.java KeySearch.java Codec.java SegmentLog.java
+// SegmentIndex.java BloomFilter.java PartitionCache.java ClockCache.java
+// SegmentedLruCache.java BufferFlusher.java WriteAheadLog.java CheckpointStore.java
+// LatencyHistogram.java TreeMetrics.java TreeMetricsMXBean.java and TreeBenchmark.java. then e.g.
+//   java TreeBenchmark workload=mixed:90 dist=zipf threads=1,2,4,8 buffer=16,64,256
+// runs every combination of the comma separated options and prints one line each.
+// options (defaults in brackets):
+//   workload  get, insert, delete, mixed:<read percent> or range [get]
+//   dist      uniform, zipf or sequential [uniform]
+//   threads   [1,2,4,8]     buffer     bufferSize of the tree [64]
+//   keys      key space [1000000]    rangeLength  keys per range scan [100]
+//   warmup    seconds [2]   seconds    measured seconds [5]   partitions [4]
+// every run starts from a fresh tree in a temporary directory. get, delete, mixed and range
+// preload the whole key space first. delete puts its key back untimed before each delete, so
+// every measured delete removes a live key, and that time is taken out of ops/s.
+// threads=1 is the single-threaded baseline
+class TreeBenchmark {
+    private static final double ZIPF_THETA = 0.99;
+
+    private final String workload;
+    private final int readPercent;
+    private final String distribution;
+    private final int threads;
+    private final int bufferSize;
+    private final int keys;
+    private final int rangeLength;
+    private final int partitions;
+    private final long warmupMillis;
+    private final long measureMillis;
+
+    private BTree<Integer, Integer> tree;
+    private Method scan; // BTree.scan(from, to) where the variant has one
+    private Zipf zipf;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile int phase; // 0 warmup, 1 measuring, 2 stopped
+
+    TreeBenchmark(String workload, String distribution, int threads, int bufferSize, Map<String, String> options) {
+        String[] parts = workload.split(":");
+        this.workload = parts[0];
+        this.readPercent = parts.length > 1 ? Integer.parseInt(parts[1]) : 100;
+        this.distribution = distribution;
+        this.threads = threads;
+        this.bufferSize = bufferSize;
+        this.keys = Integer.parseInt(options.getOrDefault("keys", "1000000"));
+        this.rangeLength = Integer.parseInt(options.getOrDefault("rangeLength", "100"));
+        this.partitions = Integer.parseInt(options.getOrDefault("partitions", "4"));
+        this.warmupMillis = (long) (Double.parseDouble(options.getOrDefault("warmup", "2")) * 1000);
+        this.measureMillis = (long) (Double.parseDouble(options.getOrDefault("seconds", "5")) * 1000);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        System.out.printf("%-10s %-10s %7s %6s %14s %10s %10s %10s %10s %10s%n", "workload", "dist", "threads",
+                "buffer", "ops/s", "mean us", "p50 us", "p99 us", "p99.9 us", "max us");
+        for (String workload : options.getOrDefault("workload", "get").split(",")) {
+            for (String distribution : options.getOrDefault("dist", "uniform").split(",")) {
+                for (String buffer : options.getOrDefault("buffer", "64").split(",")) {
+                    for (String threads : options.getOrDefault("threads", "1,2,4,8").split(",")) {
+                        new TreeBenchmark(workload, distribution, Integer.parseInt(threads),
+                                Integer.parseInt(buffer), options).run();
+                    }
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        Path directory = Files.createTempDirectory("tree-benchmark");
+        tree = new BTree<>(bufferSize, partitions, directory.toString());
+        scan = findScan();
+        if (workload.equals("range") && scan == null) {
+            System.out.printf("%-10s this BTree variant has no scan, skipped%n", workload);
+            tree.close();
+            deleteDirectory(directory);
+            return;
+        }
+        if (distribution.equals("zipf")) {
+            zipf = new Zipf(keys, ZIPF_THETA);
+        }
+        if (!workload.equals("insert")) {
+            for (int key = 0; key < keys; key++) {
+                tree.insert(key, key);
+            }
+        }
+
+        List<Thread> workers = new ArrayList<>();
+        List<LatencyHistogram> histograms = new ArrayList<>();
+        List<long[]> operations = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            long[] count = new long[2]; // measured operations, nanos spent re-seeding meanwhile
+            histograms.add(histogram);
+            operations.add(count);
+            workers.add(new Thread(() -> work(histogram, count), "benchmark-" + i));
+        }
+        phase = 0;
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(warmupMillis);
+        long start = System.nanoTime();
+        phase = 1;
+        Thread.sleep(measureMillis);
+        phase = 2;
+        long elapsed = System.nanoTime() - start;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        LatencyHistogram total = new LatencyHistogram();
+        long count = 0;
+        long seeding = 0;
+        for (int i = 0; i < threads; i++) {
+            total.add(histograms.get(i));
+            count += operations.get(i)[0];
+            seeding += operations.get(i)[1];
+        }
+        elapsed -= seeding / threads;
+        System.out.printf("%-10s %-10s %7d %6d %14.0f %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                workload + (workload.equals("mixed") ? ":" + readPercent : ""), distribution, threads, bufferSize,
+                count * 1e9 / elapsed, total.getMean() / 1000, total.getValueAtPercentile(50) / 1000.0,
+                total.getValueAtPercentile(99) / 1000.0, total.getValueAtPercentile(99.9) / 1000.0,
+                total.getMax() / 1000.0);
+
+        tree.close();
+        deleteDirectory(directory);
+    }
+
+    // runs operations until stopped, only those started while measuring are recorded
+    private void work(LatencyHistogram histogram, long[] count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int state;
+        while ((state = phase) != 2) {
+            int key = nextKey(random);
+            long seeding = 0;
+            if (workload.equals("delete")) {
+                // re-seed, otherwise the deletes soon only hit keys that are already gone
+                long seed = System.nanoTime();
+                tree.insert(key, key);
+                seeding = System.nanoTime() - seed;
+            }
+            long start = System.nanoTime();
+            operation(key, random);
+            long latency = System.nanoTime() - start;
+            if (state == 1) {
+                histogram.record(latency);
+                count[0]++;
+                count[1] += seeding;
+            }
+        }
+    }
+
+    private void operation(int key, ThreadLocalRandom random) {
+        switch (workload) {
+            case "get":
+                tree.search(key);
+                break;
+            case "insert":
+                tree.insert(key, key);
+                break;
+            case "delete":
+                tree.delete(key);
+                break;
+            case "mixed":
+                if (random.nextInt(100) < readPercent) {
+                    tree.search(key);
+                } else {
+                    tree.insert(key, key);
+                }
+                break;
+            case "range":
+                scan(key);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown workload " + workload);
+        }
+    }
+
+    private int nextKey(ThreadLocalRandom random) {
+        switch (distribution) {
+            case "uniform":
+                return random.nextInt(keys);
+            case "zipf":
+                return (int) zipf.next(random.nextDouble());
+            case "sequential":
+                // shared counter, so inserts keep hitting the rightmost leaf
+                return (int) (sequence.getAndIncrement() % keys);
+            default:
+                throw new IllegalArgumentException("unknown distribution " + distribution);
+        }
+    }
+
+    private void scan(int from) {
+        try {
+            Iterator<?> cursor = (Iterator<?>) scan.invoke(tree, from, null);
+            for (int i = 0; i < rangeLength && cursor.hasNext(); i++) {
+                cursor.next();
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // looked up by reflection so the benchmark compiles against variants without range scans
+    private Method findScan() {
+        for (Method method : tree.getClass().getMethods()) {
+            if (method.getName().equals("scan") && method.getParameterCount() == 2) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    // YCSB's zipfian generator: item 0 is the most popular, so hot keys share leaves and the
+    // benchmark sees the latch contention a skewed workload causes
+    private static final class Zipf {
+        private final long items;
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        Zipf(long items, double theta) {
+            this.items = items;
+            this.theta = theta;
+            double zeta = 0;
+            for (long i = 1; i <= items; i++) {
+                zeta += 1 / Math.pow(i, theta);
+            }
+            this.zetaN = zeta;
+            this.alpha = 1 / (1 - theta);
+            double zeta2 = 1 + Math.pow(0.5, theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetaN);
+        }
+
+        long next(double uniform) {
+            double uz = uniform * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return 1;
+            }
+            return Math.min(items - 1, (long) (items * Math.pow(eta * uniform - eta + 1, alpha)));
+        }
+    }
+}
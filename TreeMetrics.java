@@ -0,0 +1,157 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// process-wide counters and latency histograms for the trees and HashPartition. off unless
+// -Dbtree.metrics=true or setEnabled(true), and while off every hook is a volatile read and
+// a branch, System.nanoTime() is only called when enabled. counters are LongAdders so hot
+// paths on different cores don't contend on one cache line
+final class TreeMetrics {
+    public static final String OBJECT_NAME = "btree:type=TreeMetrics";
+
+    private static volatile boolean enabled = Boolean.getBoolean("btree.metrics");
+
+    static final LatencyHistogram INSERT = new LatencyHistogram();
+    static final LatencyHistogram SEARCH = new LatencyHistogram();
+    static final LatencyHistogram DELETE = new LatencyHistogram();
+    static final LatencyHistogram FLUSH = new LatencyHistogram(); // writeBufferToDisk
+    static final LatencyHistogram LOCK_WAIT = new LatencyHistogram(); // contended BTreeNode_Reentrant latches
+
+    static final LongAdder SPLITS = new LongAdder();
+    static final LongAdder BORROWS = new LongAdder();
+    static final LongAdder MERGES = new LongAdder();
+    static final LongAdder RESTARTS = new LongAdder(); // optimistic descents that started over
+    static final LongAdder SPIN_ITERATIONS = new LongAdder(); // BTreeNode_spin waiting on a locked node
+    static final LongAdder FLUSHED_ENTRIES = new LongAdder(); // handed to the flusher by writeBufferToDisk
+    static final LongAdder FLUSHED_BYTES = new LongAdder(); // encoded keys and values appended to partitions
+    static final LongAdder CACHE_HITS = new LongAdder();
+    static final LongAdder CACHE_MISSES = new LongAdder();
+
+    private static boolean registered;
+
+    private TreeMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        TreeMetrics.enabled = enabled;
+    }
+
+    // start of a timed operation, 0 while disabled
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    static void record(LatencyHistogram histogram, long start) {
+        if (start != 0) {
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    static void count(LongAdder counter) {
+        if (enabled) {
+            counter.increment();
+        }
+    }
+
+    static void count(LongAdder counter, long amount) {
+        if (enabled && amount != 0) {
+            counter.add(amount);
+        }
+    }
+
+    // every value in one map, latencies in nanoseconds. taken without stopping writers, so
+    // the values may be a few operations apart
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        putLatency(snapshot, "insert", INSERT);
+        putLatency(snapshot, "search", SEARCH);
+        putLatency(snapshot, "delete", DELETE);
+        putLatency(snapshot, "flush", FLUSH);
+        putLatency(snapshot, "lockWait", LOCK_WAIT);
+        snapshot.put("splits", SPLITS.sum());
+        snapshot.put("borrows", BORROWS.sum());
+        snapshot.put("merges", MERGES.sum());
+        snapshot.put("restarts", RESTARTS.sum());
+        snapshot.put("spinIterations", SPIN_ITERATIONS.sum());
+        snapshot.put("flushedEntries", FLUSHED_ENTRIES.sum());
+        snapshot.put("flushedBytes", FLUSHED_BYTES.sum());
+        snapshot.put("cacheHits", CACHE_HITS.sum());
+        snapshot.put("cacheMisses", CACHE_MISSES.sum());
+        return snapshot;
+    }
+
+    private static void putLatency(Map<String, Long> snapshot, String name, LatencyHistogram histogram) {
+        snapshot.put(name + ".count", histogram.getCount());
+        snapshot.put(name + ".meanNanos", (long) histogram.getMean());
+        snapshot.put(name + ".p50Nanos", histogram.getValueAtPercentile(50));
+        snapshot.put(name + ".p99Nanos", histogram.getValueAtPercentile(99));
+        snapshot.put(name + ".p999Nanos", histogram.getValueAtPercentile(99.9));
+        snapshot.put(name + ".maxNanos", histogram.getMax());
+    }
+
+    // share of HashPartition.get calls answered from the cache, 0 before the first one
+    public static double getCacheHitRate() {
+        long hits = CACHE_HITS.sum();
+        long total = hits + CACHE_MISSES.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public static void reset() {
+        for (LatencyHistogram histogram : new LatencyHistogram[] {INSERT, SEARCH, DELETE, FLUSH, LOCK_WAIT}) {
+            histogram.reset();
+        }
+        for (LongAdder counter : new LongAdder[] {SPLITS, BORROWS, MERGES, RESTARTS, SPIN_ITERATIONS,
+                FLUSHED_ENTRIES, FLUSHED_BYTES, CACHE_HITS, CACHE_MISSES}) {
+            counter.reset();
+        }
+    }
+
+    // registers the MXBean under OBJECT_NAME with the platform MBean server, once per process
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+        registered = true;
+    }
+
+    private static final class Bean implements TreeMetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return TreeMetrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            TreeMetrics.setEnabled(enabled);
+        }
+
+        @Override
+        public Map<String, Long> getSnapshot() {
+            return TreeMetrics.snapshot();
+        }
+
+        @Override
+        public double getCacheHitRate() {
+            return TreeMetrics.getCacheHitRate();
+        }
+
+        @Override
+        public void reset() {
+            TreeMetrics.reset();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+import java.util.Map;
+
+// management interface of TreeMetrics, JMX needs it to be public
+public interface TreeMetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    Map<String, Long> getSnapshot();
+
+    double getCacheHitRate();
+
+    void reset();
+}
@@ -0,0 +1,97 @@
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// asynchronous front-end for a tree: every call runs on the request executor and completes a
+// future. by default that is one virtual thread per request where the JVM has them (21+),
+// otherwise a pool of platform threads. reads are answered from the leaves and never touch
+// the partition logs, and the latches and the flusher's backpressure are ReentrantLocks and
+// conditions, which a blocked virtual thread unmounts from instead of pinning its carrier.
+// built on BTree.java, the batch calls use its insertAll, getAll and deleteAll
+class TreeService<K extends Comparable<K>, V> implements Closeable {
+    private final BTree<K, V> tree;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+
+    public TreeService(BTree<K, V> tree) {
+        this(tree, newRequestExecutor(), true);
+    }
+
+    // the caller keeps ownership of executor, close() leaves it running
+    public TreeService(BTree<K, V> tree, Executor executor) {
+        this(tree, executor, false);
+    }
+
+    private TreeService(BTree<K, V> tree, Executor executor, boolean ownsExecutor) {
+        this.tree = tree;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    // looked up by reflection so this still compiles on 17
+    public static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 4, runnable -> {
+                Thread thread = new Thread(runnable, "tree-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public CompletableFuture<V> getAsync(K key) {
+        return CompletableFuture.supplyAsync(() -> tree.search(key), executor);
+    }
+
+    public CompletableFuture<Void> insertAsync(K key, V value) {
+        return CompletableFuture.runAsync(() -> tree.insert(key, value), executor);
+    }
+
+    public CompletableFuture<Void> deleteAsync(K key) {
+        return CompletableFuture.runAsync(() -> tree.delete(key), executor);
+    }
+
+    // one request for the whole batch, the map holds the keys that were found
+    public CompletableFuture<Map<K, V>> getAllAsync(Collection<K> keys) {
+        return CompletableFuture.supplyAsync(() -> tree.getAll(keys), executor);
+    }
+
+    public CompletableFuture<Void> insertAllAsync(Collection<Map.Entry<K, V>> entries) {
+        return CompletableFuture.runAsync(() -> tree.insertAll(entries), executor);
+    }
+
+    public CompletableFuture<Void> deleteAllAsync(Collection<K> keys) {
+        return CompletableFuture.runAsync(() -> tree.deleteAll(keys), executor);
+    }
+
+    public CompletableFuture<Void> flushAsync() {
+        return CompletableFuture.runAsync(tree::writeBufferToDisk, executor);
+    }
+
+    public BTree<K, V> getTree() {
+        return tree;
+    }
+
+    // waits for accepted requests, the tree itself stays open
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            ExecutorService service = (ExecutorService) executor;
+            service.shutdown();
+            try {
+                service.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
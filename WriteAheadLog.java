@@ -0,0 +1,367 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// redo log of tree mutations. a record is crc (int), type (byte), key length (int),
+// value length (int), key bytes, value bytes, the crc covering everything after it.
+// appends only copy into a pending buffer. whoever needs the log on disk first becomes the
+// leader, writes out everything pending and fsyncs once, and every writer whose record went
+// out with that batch returns without a sync of its own (group commit).
+// lsns only grow: truncation drops a prefix of the file and moves baseLsn, the lsn of the
+// file's first byte, so a committer waiting for an lsn from before the truncate still sees it covered.
+// a failed write or fsync fails the log for good: whatever that batch held may be torn or lost,
+// so no later commit may report it durable, and appends and commits throw from then on
+class WriteAheadLog<K, V> implements Closeable {
+    public enum SyncPolicy {
+        NONE,     // written when the pending buffer fills, fsync only on sync() and close()
+        PERIODIC, // a background thread syncs every syncIntervalMillis, a crash loses at most that window
+        GROUP     // commit() returns once the caller's records are fsynced
+    }
+
+    public interface Visitor<K, V> {
+        void insert(K key, V value);
+
+        void delete(K key);
+    }
+
+    private static final int HEADER = 13;
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    private static final int PENDING_LIMIT = 1024 * 1024; // NONE writes out once this much is pending
+
+    private final Path file;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final SyncPolicy syncPolicy;
+    private FileChannel channel; // replaced when truncate keeps a tail, guarded by lock
+    private final ScheduledExecutorService syncer; // PERIODIC only
+    private ByteBuffer pending;
+    private ByteBuffer spare; // the leader's batch buffer, null while a batch is being written
+    private long baseLsn; // lsn at offset 0 of the file
+    private long appendedLsn; // lsn past the last appended record, pending bytes included
+    private long writtenLsn;
+    private long durableLsn;
+    private boolean committing;
+    private IOException failure; // first failed write or fsync, the log takes nothing after it
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition committed = lock.newCondition();
+
+    public WriteAheadLog(Path file, Codec<K> keyCodec, Codec<V> valueCodec, SyncPolicy syncPolicy,
+            long syncIntervalMillis) throws IOException {
+        this.file = file;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.syncPolicy = syncPolicy;
+        this.pending = ByteBuffer.allocate(64 * 1024);
+        this.spare = ByteBuffer.allocate(64 * 1024);
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.channel = openChannel(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // drop a record torn by a crash, replay stops at the last complete one anyway
+        long validLength = scan(null);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        this.appendedLsn = validLength;
+        this.writtenLsn = validLength;
+        this.durableLsn = validLength;
+
+        if (syncPolicy == SyncPolicy.PERIODIC) {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    // every channel the log writes through comes from here, tests override it to fail writes
+    FileChannel openChannel(Path path, OpenOption... options) throws IOException {
+        return FileChannel.open(path, options);
+    }
+
+    // applies every complete record in log order, meant for a fresh tree before it takes writes
+    public void replay(Visitor<K, V> visitor) throws IOException {
+        lock.lock();
+        try {
+            commit(appendedLsn, false);
+            scan(visitor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // log order has to match the order the tree applies mutations to a key, so callers append
+    // while they hold the latch of the leaf that holds the key
+    public void logInsert(K key, V value) {
+        append(INSERT, keyCodec.encode(key), valueCodec.encode(value));
+    }
+
+    public void logDelete(K key) {
+        append(DELETE, keyCodec.encode(key), new byte[0]);
+    }
+
+    private void append(byte type, byte[] key, byte[] value) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER + key.length + value.length);
+        record.putInt(0).put(type).putInt(key.length).putInt(value.length).put(key).put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+
+        lock.lock();
+        try {
+            checkFailure();
+            if (pending.remaining() < record.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                        pending.position() + record.remaining()));
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            pending.put(record);
+            appendedLsn += record.capacity();
+            if (syncPolicy == SyncPolicy.NONE && pending.position() >= PENDING_LIMIT) {
+                commit(appendedLsn, false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // call once the caller's latches are released. under GROUP it waits for the fsync that
+    // covers everything appended so far, the other policies return right away
+    public void commit() {
+        if (syncPolicy != SyncPolicy.GROUP) {
+            return;
+        }
+        sync();
+    }
+
+    public void sync() {
+        lock.lock();
+        try {
+            commit(appendedLsn, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
+            // the log stays failed, rethrowing cancels the periodic sync
+            throw e;
+        }
+    }
+
+    // caller holds lock
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException("write-ahead log failed", failure);
+        }
+    }
+
+    // caller holds lock. one thread at a time writes a batch with the lock released, the
+    // others wait and re-check whether that batch already covered them
+    private void commit(long target, boolean force) {
+        while ((force ? durableLsn : writtenLsn) < target) {
+            checkFailure();
+            if (committing) {
+                committed.awaitUninterruptibly();
+                continue;
+            }
+            committing = true;
+            ByteBuffer batch = pending;
+            pending = spare;
+            spare = null;
+            long end = appendedLsn;
+
+            lock.unlock();
+            IOException error = null;
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                if (force) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                lock.lock();
+                batch.clear();
+                spare = batch;
+                committing = false;
+                if (error != null) {
+                    // writtenLsn and durableLsn stay where they were, the waiters wake up to the failure
+                    failure = error;
+                }
+                committed.signalAll();
+            }
+            checkFailure();
+            writtenLsn = end;
+            if (force) {
+                durableLsn = end;
+            }
+        }
+    }
+
+    // empties the log, for when everything in it is covered by a checkpoint
+    public void truncate() throws IOException {
+        truncate(Long.MAX_VALUE);
+    }
+
+    // drops the records before lsn, which has to be a value getAppendedLsn() returned. the
+    // records after it are copied into a new file that replaces the log
+    public void truncate(long lsn) throws IOException {
+        lock.lock();
+        try {
+            commit(appendedLsn, false);
+            // a force leader may still be syncing a batch that was already written
+            while (committing) {
+                committed.awaitUninterruptibly();
+            }
+            lsn = Math.min(lsn, writtenLsn);
+            if (lsn <= baseLsn) {
+                return;
+            }
+            long keepFrom = lsn - baseLsn;
+            long size = channel.size();
+            if (keepFrom >= size) {
+                channel.truncate(0);
+                channel.position(0);
+                channel.force(true);
+            } else {
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long copied = 0;
+                    while (copied < size - keepFrom) {
+                        copied += channel.transferTo(keepFrom + copied, size - keepFrom - copied, out);
+                    }
+                    out.force(true);
+                }
+                channel.close();
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                channel = openChannel(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(size - keepFrom);
+            }
+            baseLsn = lsn;
+            // the kept tail was forced with the copy
+            durableLsn = writtenLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAppendedLsn() {
+        lock.lock();
+        try {
+            return appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDurableLsn() {
+        lock.lock();
+        try {
+            return durableLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            // no shutdownNow(), an interrupt during a write would close the channel
+            syncer.shutdown();
+            try {
+                syncer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.lock();
+        try {
+            commit(appendedLsn, true);
+        } finally {
+            channel.close();
+            lock.unlock();
+        }
+    }
+
+    // reads records from the start of the file, visiting them if visitor is given.
+    // returns the length covered by complete records with a matching crc
+    private long scan(Visitor<K, V> visitor) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (position + HEADER <= size) {
+            header.clear();
+            readFully(header, position);
+            int keyLength = header.getInt(5);
+            int valueLength = header.getInt(9);
+            if (keyLength < 0 || valueLength < 0 || position + HEADER + (long) keyLength + valueLength > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(keyLength + valueLength);
+            readFully(body, position + HEADER);
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 4, HEADER - 4);
+            crc.update(body.array());
+            if ((int) crc.getValue() != header.getInt(0)) {
+                break;
+            }
+
+            if (visitor != null) {
+                byte[] key = new byte[keyLength];
+                body.get(0, key);
+                if (header.get(4) == INSERT) {
+                    byte[] value = new byte[valueLength];
+                    body.get(keyLength, value);
+                    visitor.insert(keyCodec.decode(key), valueCodec.decode(value));
+                } else {
+                    visitor.delete(keyCodec.decode(key));
+                }
+            }
+            position += HEADER + keyLength + valueLength;
+        }
+        return position;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// group committers racing a thread that keeps truncating the log. every commit has to return,
+// and the records appended after the last truncate have to replay from a reopened log.
+// then a write that fails halfway through a batch: that commit and everything after it has to
+// throw, and a reopened log replays what was committed before it and nothing appended after.
+// needs WriteAheadLog.java and Codec.java, run with java WriteAheadLogTest
+class WriteAheadLogTest {
+    private static final int THREADS = 16;
+    private static final int RECORDS_PER_THREAD = 2000;
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("wal-test");
+        Path file = directory.resolve("wal.log");
+        WriteAheadLog<Integer, Integer> log = new WriteAheadLog<>(file, Codec.INTEGER, Codec.INTEGER,
+                WriteAheadLog.SyncPolicy.GROUP, 0);
+
+        AtomicInteger running = new AtomicInteger(THREADS);
+        List<Thread> committers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int base = t * RECORDS_PER_THREAD;
+            Thread committer = new Thread(() -> {
+                for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                    log.logInsert(base + i, base + i);
+                    log.commit();
+                }
+                running.decrementAndGet();
+            }, "committer-" + t);
+            committers.add(committer);
+            committer.start();
+        }
+        Thread truncator = new Thread(() -> {
+            try {
+                while (running.get() > 0) {
+                    log.truncate(log.getAppendedLsn());
+                    Thread.sleep(1);
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, "truncator");
+        truncator.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (Thread committer : committers) {
+            committer.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (committer.isAlive()) {
+                fail(committer.getName() + " still waiting for its commit");
+            }
+        }
+        truncator.join();
+
+        // the tail after a partial truncate survives, the prefix before it is gone
+        long lsn = log.getAppendedLsn();
+        for (int i = 0; i < 10; i++) {
+            log.logInsert(-1 - i, i);
+        }
+        log.commit();
+        log.truncate(lsn);
+        if (log.getDurableLsn() != log.getAppendedLsn() || log.getAppendedLsn() <= lsn) {
+            fail("lsns moved backwards after truncate");
+        }
+        log.close();
+
+        List<Integer> replayed = new ArrayList<>();
+        WriteAheadLog<Integer, Integer> reopened = new WriteAheadLog<>(file, Codec.INTEGER, Codec.INTEGER,
+                WriteAheadLog.SyncPolicy.GROUP, 0);
+        reopened.replay(new WriteAheadLog.Visitor<>() {
+            @Override
+            public void insert(Integer key, Integer value) {
+                replayed.add(key);
+            }
+
+            @Override
+            public void delete(Integer key) {
+                fail("unexpected delete " + key);
+            }
+        });
+        reopened.close();
+        for (int i = 0; i < 10; i++) {
+            if (replayed.size() != 10 || replayed.get(i) != -1 - i) {
+                fail("replayed " + replayed + ", expected the 10 records after the truncate");
+            }
+        }
+
+        failedWrite(directory.resolve("failing.log"));
+        System.out.println("ok");
+    }
+
+    private static void failedWrite(Path file) throws Exception {
+        WriteAheadLog<Integer, Integer> log = new WriteAheadLog<>(file, Codec.INTEGER, Codec.INTEGER,
+                WriteAheadLog.SyncPolicy.GROUP, 0) {
+            @Override
+            FileChannel openChannel(Path path, OpenOption... options) throws IOException {
+                return new FailingChannel(FileChannel.open(path, options));
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            log.logInsert(i, i);
+        }
+        log.commit();
+        long durable = log.getDurableLsn();
+
+        FailingChannel.failing = true;
+        log.logInsert(100, 100);
+        log.logInsert(101, 101);
+        expectFailure("the commit of the torn batch", log::commit);
+        FailingChannel.failing = false;
+        // the channel works again, the log must not
+        expectFailure("an append after the failure", () -> log.logInsert(102, 102));
+        expectFailure("a commit after the failure", log::commit);
+        if (log.getDurableLsn() != durable) {
+            fail("durable lsn moved past the failed batch");
+        }
+        expectFailure("close after the failure", () -> {
+            try {
+                log.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        List<Integer> replayed = new ArrayList<>();
+        WriteAheadLog<Integer, Integer> reopened = new WriteAheadLog<>(file, Codec.INTEGER, Codec.INTEGER,
+                WriteAheadLog.SyncPolicy.GROUP, 0);
+        reopened.replay(new WriteAheadLog.Visitor<>() {
+            @Override
+            public void insert(Integer key, Integer value) {
+                replayed.add(key);
+            }
+
+            @Override
+            public void delete(Integer key) {
+                fail("unexpected delete " + key);
+            }
+        });
+        reopened.close();
+        // the complete records of the torn batch may come back, it just was never acknowledged
+        if (replayed.size() < 10 || !replayed.subList(0, 10).equals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9))
+                || !List.of(100, 101).containsAll(replayed.subList(10, replayed.size()))) {
+            fail("replayed " + replayed + ", expected the 10 records committed before the failure");
+        }
+    }
+
+    private static void expectFailure(String what, Runnable action) {
+        try {
+            action.run();
+        } catch (UncheckedIOException e) {
+            return;
+        }
+        fail(what + " did not fail");
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAILED: " + message);
+        System.exit(1);
+    }
+
+    // passes everything through to a real channel, except that while failing a write puts
+    // out half of what it was given and then throws, like a disk that fills up mid-batch
+    private static final class FailingChannel extends FileChannel {
+        static volatile boolean failing;
+
+        private final FileChannel channel;
+
+        FailingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (failing) {
+                ByteBuffer half = source.duplicate();
+                half.limit(source.position() + source.remaining() / 2);
+                int written = channel.write(half);
+                source.position(source.position() + written);
+                throw new IOException("no space left on device");
+            }
+            return channel.write(source);
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            return channel.read(destination);
+        }
+
+        @Override
+        public long read(ByteBuffer[] destinations, int offset, int length) throws IOException {
+            return channel.read(destinations, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+            return channel.write(sources, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long position) throws IOException {
+            channel.position(position);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+            return channel.transferFrom(source, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer destination, long position) throws IOException {
+            return channel.read(destination, position);
+        }
+
+        @Override
+        public int write(ByteBuffer source, long position) throws IOException {
+            return channel.write(source, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}